@@ -0,0 +1,92 @@
+package dk.nversion.benchmark;
+
+import dk.nversion.LoadBalancer;
+import dk.nversion.LoadBalancerPolicy;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead LoadBalancer.wrap adds on top of an already completed backend future.
+ *
+ * Run with "-prof gc" to get the allocation rate per call, "-bm sample" for tail latency
+ * and "-t N" to change the number of contending threads.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBalancerBenchmark {
+    private static final CompletableFuture<String> SUCCESS = CompletableFuture.completedFuture("value");
+    private static final CompletableFuture<String> FAILURE = new CompletableFuture<>();
+
+    static {
+        FAILURE.completeExceptionally(new Exception("Benchmark failure"));
+    }
+
+    @State(Scope.Benchmark)
+    public static class BalancerState {
+        // Empty value list makes JMH run every policy in the enum
+        @Param
+        public LoadBalancerPolicy policy;
+
+        @Param({"1", "10", "100", "1000"})
+        public int endpointCount;
+
+        public LoadBalancer loadBalancer;
+
+        @Setup
+        public void setup() {
+            loadBalancer = LoadBalancer.builder()
+                    .setEndpointCount(endpointCount)
+                    .setPolicy(policy)
+                    .build();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class RetryState {
+        @Param({"1", "2", "5"})
+        public int retries;
+
+        public LoadBalancer loadBalancer;
+
+        @Setup
+        public void setup(BalancerState balancerState) {
+            loadBalancer = LoadBalancer.builder()
+                    .setEndpointCount(balancerState.endpointCount)
+                    .setPolicy(balancerState.policy)
+                    .setRetryCount(retries)
+                    .build();
+        }
+    }
+
+    @Benchmark
+    public String wrapSupplier(BalancerState state) {
+        return state.loadBalancer.wrap(() -> SUCCESS).join();
+    }
+
+    @Benchmark
+    public String wrapFunction(BalancerState state) {
+        return state.loadBalancer.wrap((index) -> SUCCESS).join();
+    }
+
+    @Benchmark
+    public String wrapBiFunction(BalancerState state) {
+        return state.loadBalancer.wrap((index, retryCount) -> SUCCESS).join();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String wrapBiFunctionContended(BalancerState state) {
+        return state.loadBalancer.wrap((index, retryCount) -> SUCCESS).join();
+    }
+
+    // Every attempt but the last one fails, so each call goes through all retries
+    @Benchmark
+    public String wrapRetry(RetryState state) {
+        return state.loadBalancer.wrap((index, retryCount) -> retryCount > 0 ? FAILURE : SUCCESS).join();
+    }
+}
@@ -0,0 +1,20 @@
+package dk.nversion;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+@FunctionalInterface
+public interface BatchFunction<K, V> {
+
+    /**
+     * Calls the endpoint with the given index for a batch of keys.
+     *
+     * @param index the endpoint to call
+     * @param retryCount number of retries left after this attempt
+     * @param keys the distinct keys of the batch
+     * @return future with the results by key, keys without a result fail
+     */
+    CompletableFuture<Map<K, V>> apply(int index, int retryCount, List<K> keys);
+
+}
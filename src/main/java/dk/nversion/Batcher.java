@@ -0,0 +1,115 @@
+package dk.nversion;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Gathers single key calls into batches that are sent to one endpoint at a time through a LoadBalancer.
+ *
+ * A batch is sent when it has maxSize keys or maxDelay after its first key, whichever comes first. Each batch is a
+ * single call to the LoadBalancer, so the policy picks the endpoint and retries, timeouts and failures are tracked
+ * per batch. The delay runs on the timer of the LoadBalancer and is rounded up to its tick, 1ms for the shared timer.
+ */
+public final class Batcher<K, V> {
+    private final LoadBalancer loadBalancer;
+    private final int maxSize;
+    private final long maxDelay;
+    private final BatchFunction<K, V> function;
+    private final HashedWheelTimer timer;
+
+    // Guarded by this
+    private Map<K, CompletableFuture<V>> batch;
+    private HashedWheelTimer.Timeout batchTimeout;
+
+    public Batcher(LoadBalancer loadBalancer, int maxSize, long maxDelay, TimeUnit maxDelayTimeUnit, BatchFunction<K, V> function) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        this.loadBalancer = loadBalancer;
+        this.maxSize = maxSize;
+        this.maxDelay = maxDelayTimeUnit.toNanos(maxDelay);
+        this.function = function;
+        this.timer = loadBalancer.getTimer();
+    }
+
+    /**
+     * Add the key to the current batch, calls for a key that is already in the batch share its result
+     */
+    public CompletableFuture<V> get(K key) {
+        Map<K, CompletableFuture<V>> full = null;
+        CompletableFuture<V> future;
+        synchronized (this) {
+            if (batch == null) {
+                Map<K, CompletableFuture<V>> started = new LinkedHashMap<>();
+                batch = started;
+                // Sending calls the batch function, so it is handed to the executor of the LoadBalancer
+                batchTimeout = timer.schedule(() -> loadBalancer.execute(() -> flush(started)), maxDelay, TimeUnit.NANOSECONDS);
+            }
+            // Every caller gets its own dependent future, so cancelling one of them does not cancel the others
+            CompletableFuture<V> existing = batch.get(key);
+            if (existing != null) {
+                return existing.thenApply(Function.identity());
+            }
+            future = new CompletableFuture<>();
+            batch.put(key, future);
+            if (batch.size() >= maxSize) {
+                full = batch;
+                batch = null;
+                batchTimeout.cancel();
+            }
+        }
+        CompletableFuture<V> caller = future.thenApply(Function.identity());
+        if (full != null) {
+            send(full);
+        }
+        return caller;
+    }
+
+    /**
+     * Send the current batch now
+     */
+    public void flush() {
+        Map<K, CompletableFuture<V>> current;
+        synchronized (this) {
+            current = batch;
+        }
+        if (current != null) {
+            flush(current);
+        }
+    }
+
+    // Only sends the batch if it has not been sent already
+    private void flush(Map<K, CompletableFuture<V>> expected) {
+        synchronized (this) {
+            if (batch != expected) {
+                return;
+            }
+            batch = null;
+            batchTimeout.cancel();
+        }
+        send(expected);
+    }
+
+    private void send(Map<K, CompletableFuture<V>> batch) {
+        List<K> keys = Collections.unmodifiableList(new ArrayList<>(batch.keySet()));
+        loadBalancer.wrap((index, retryCount) -> function.apply(index, retryCount, keys)).whenComplete((results, ex) -> {
+            for (Map.Entry<K, CompletableFuture<V>> entry : batch.entrySet()) {
+                if (ex != null) {
+                    entry.getValue().completeExceptionally(ex);
+
+                } else if (results != null && results.containsKey(entry.getKey())) {
+                    entry.getValue().complete(results.get(entry.getKey()));
+
+                } else {
+                    entry.getValue().completeExceptionally(new LoadBalancerException("No result for key " + entry.getKey()));
+                }
+            }
+        });
+    }
+}
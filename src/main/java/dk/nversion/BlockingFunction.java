@@ -0,0 +1,17 @@
+package dk.nversion;
+
+@FunctionalInterface
+public interface BlockingFunction<T> {
+
+    /**
+     * Calls the endpoint with the given index on the calling thread.
+     *
+     * @param index the endpoint to call
+     * @param retryCount number of retries left after this attempt
+     * @param deadline System.nanoTime() value the attempt has to complete by, Long.MAX_VALUE when there is no deadline
+     * @return the result of the call
+     * @throws Exception when the attempt failed, it is retried like a failed future
+     */
+    T apply(int index, int retryCount, long deadline) throws Exception;
+
+}
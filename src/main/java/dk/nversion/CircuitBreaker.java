@@ -0,0 +1,184 @@
+package dk.nversion;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Circuit breaker for a single endpoint. While closed it counts successes and failures in a ring of time buckets, so
+// recording a call is O(1) whatever the thresholds, and it opens when the failures in the window reach both the
+// failure rate and the minimum volume. Once the open time has passed it goes half open and lets a few probe calls
+// through, it closes when they succeed and opens again as soon as one fails.
+final class CircuitBreaker {
+    private static final int BUCKETS = 10;
+    static final int HALF_OPEN_PROBES = 3;
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private final double failureRate;
+    private final int minimumCalls;
+    private final int minimumFailures;
+    private final long bucketTime;
+    private final long openTime;
+
+    // Successes and failures of each bucket are stored next to each other
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS * 2);
+    private final AtomicLongArray bucketEpochs = new AtomicLongArray(BUCKETS);
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    private final PaddedAtomicLong openUntil = new PaddedAtomicLong();
+    private final AtomicInteger probes = new AtomicInteger();
+    private final AtomicInteger probeSuccesses = new AtomicInteger();
+
+    /**
+     * @param failureRate fraction of the calls in the window that must fail, 0 to only use minimumFailures
+     * @param minimumCalls calls needed in the window before the breaker can open
+     * @param minimumFailures failures needed in the window before the breaker can open
+     * @param window length of the window in milliseconds
+     * @param openTime milliseconds to stay open before probing
+     */
+    CircuitBreaker(double failureRate, int minimumCalls, int minimumFailures, long window, long openTime) {
+        this.failureRate = failureRate;
+        this.minimumCalls = minimumCalls;
+        this.minimumFailures = Math.max(minimumFailures, 1);
+        this.bucketTime = Math.max(window / BUCKETS, 1);
+        this.openTime = openTime;
+    }
+
+    // Does not use up a probe, selection checks every endpoint
+    boolean isCallPermitted(long now) {
+        int current = state.get();
+        if (current == CLOSED) {
+            return true;
+        }
+        if (current == OPEN && openUntil.get() > now) {
+            return false;
+        }
+        return probes.get() < HALF_OPEN_PROBES;
+    }
+
+    void onDispatch(long now) {
+        int current = state.get();
+        if (current == CLOSED) {
+            return;
+        }
+        if (current == OPEN && openUntil.get() <= now && state.compareAndSet(OPEN, HALF_OPEN)) {
+            probes.set(0);
+            probeSuccesses.set(0);
+        }
+        if (state.get() == HALF_OPEN) {
+            probes.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if this closed the breaker
+     */
+    boolean onSuccess(long now) {
+        int current = state.get();
+        if (current == CLOSED) {
+            record(false, now);
+
+        } else if (current == HALF_OPEN) {
+            releaseProbe();
+            if (probeSuccesses.incrementAndGet() >= HALF_OPEN_PROBES) {
+                return close();
+            }
+        }
+        // Calls started before the breaker opened complete while it is open, they are ignored
+        return false;
+    }
+
+    /**
+     * @return true if this opened the breaker
+     */
+    boolean onFailure(long now) {
+        int current = state.get();
+        if (current == CLOSED) {
+            record(true, now);
+            return isTripped(now) && open(CLOSED, now);
+
+        } else if (current == HALF_OPEN) {
+            releaseProbe();
+            return open(HALF_OPEN, now);
+        }
+        return false;
+    }
+
+    // The call was cancelled or lost a hedge race, give back the probe without counting the call
+    void onCancelled() {
+        if (state.get() == HALF_OPEN) {
+            releaseProbe();
+        }
+    }
+
+    /**
+     * @return false if the breaker was already closed
+     */
+    boolean close() {
+        if (state.getAndSet(CLOSED) != CLOSED) {
+            // Start over with an empty window
+            for (int i = 0; i < BUCKETS; i++) {
+                bucketEpochs.set(i, 0);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    CircuitBreakerState getState() {
+        switch (state.get()) {
+            case OPEN:
+                return CircuitBreakerState.OPEN;
+            case HALF_OPEN:
+                return CircuitBreakerState.HALF_OPEN;
+            default:
+                return CircuitBreakerState.CLOSED;
+        }
+    }
+
+    /**
+     * @return time in milliseconds the breaker is open until, 0 if it is not open
+     */
+    long getOpenUntil() {
+        return state.get() == OPEN ? openUntil.get() : 0;
+    }
+
+    private boolean open(int from, long now) {
+        openUntil.set(now + openTime);
+        return state.compareAndSet(from, OPEN);
+    }
+
+    private void releaseProbe() {
+        int current;
+        // Calls started before the breaker went half open might complete as probes, don't go below zero
+        while ((current = probes.get()) > 0 && !probes.compareAndSet(current, current - 1)) {
+            // Retry until the decrement sticks
+        }
+    }
+
+    private void record(boolean failed, long now) {
+        long epoch = now / bucketTime;
+        int bucket = (int) (epoch % BUCKETS);
+        long bucketEpoch = bucketEpochs.get(bucket);
+        // The first call in a new bucket clears it, calls racing with the reset might not be counted
+        if (bucketEpoch < epoch && bucketEpochs.compareAndSet(bucket, bucketEpoch, epoch)) {
+            counts.set(bucket * 2, 0);
+            counts.set(bucket * 2 + 1, 0);
+        }
+        counts.incrementAndGet(bucket * 2 + (failed ? 1 : 0));
+    }
+
+    private boolean isTripped(long now) {
+        long epoch = now / bucketTime;
+        long successes = 0;
+        long failures = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (epoch - bucketEpochs.get(i) < BUCKETS) {
+                successes += counts.get(i * 2);
+                failures += counts.get(i * 2 + 1);
+            }
+        }
+        long calls = successes + failures;
+        return failures >= minimumFailures && calls >= minimumCalls && failures >= failureRate * calls;
+    }
+}
@@ -0,0 +1,13 @@
+package dk.nversion;
+
+/**
+ * State of the circuit breaker of an endpoint, endpoints without a circuit breaker are always CLOSED
+ */
+public enum CircuitBreakerState {
+    // Calls go through and their results are counted
+    CLOSED,
+    // Calls are not sent to the endpoint until the open time has passed
+    OPEN,
+    // A few probe calls are let through to decide if the breaker closes or opens again
+    HALF_OPEN
+}
@@ -1,28 +1,145 @@
 package dk.nversion;
 
-import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
-// TODO: http://www.stoyanr.com/2012/12/evictor-java-concurrent-map-with-timed.html
-
+/**
+ * Concurrent cache for the values of completed futures, bounded by entry count and with a time to live per entry.
+ *
+ * Reads are lock-free, expired entries are dropped lazily on read and evicted in expiry order on writes, so no
+ * background thread is needed. When the cache is full the entry closest to expiring is evicted.
+ */
 public class CompletableFutureCache<K, V> {
-    Map<K, V> map = new ConcurrentHashMap<K,V>();
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final ConcurrentHashMap<K, Entry<K, V>> map = new ConcurrentHashMap<>();
+    private final PriorityQueue<Entry<K, V>> expiryQueue = new PriorityQueue<>((a, b) -> Long.compare(a.expires - b.expires, 0));
+    private final ReentrantLock expiryLock = new ReentrantLock();
+    private final TriConsumer<K, V, CompletableFutureCache<K, V>> cache;
+    private final int maxEntries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
 
+    /**
+     * @param cache called with the key, value and this cache when a wrapped future completes, decides if and for how long to put the value
+     */
     public CompletableFutureCache(TriConsumer<K, V, CompletableFutureCache<K, V>> cache) {
+        this(DEFAULT_MAX_ENTRIES, cache);
+    }
 
+    public CompletableFutureCache(int maxEntries, TriConsumer<K, V, CompletableFutureCache<K, V>> cache) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+        this.cache = cache;
     }
 
     public void put(K key, V value, int expires, TimeUnit expiresTimeUnit) {
+        long now = System.nanoTime();
+        Entry<K, V> entry = new Entry<>(key, value, now + expiresTimeUnit.toNanos(expires));
+        map.put(key, entry);
+
+        // Writes are serialized on the expiry queue, reads never touch it
+        expiryLock.lock();
+        try {
+            expiryQueue.add(entry);
+            evictExpired(now);
+            while (map.size() > maxEntries && evict(expiryQueue.poll())) {
+                // Keep evicting the entries closest to expiring until we are within bounds
+            }
+            // Replaced entries stay in the queue until they expire, rebuild it if they start to pile up
+            if (expiryQueue.size() > 2 * Math.max(map.size(), 16)) {
+                expiryQueue.clear();
+                expiryQueue.addAll(map.values());
+            }
 
+        } finally {
+            expiryLock.unlock();
+        }
     }
 
     public V get(K key, V defaultValue) {
-        return null;
+        Entry<K, V> entry = map.get(key);
+        if (entry != null) {
+            if (entry.expires - System.nanoTime() > 0) {
+                hits.increment();
+                return entry.value;
+            }
+            if (map.remove(key, entry)) {
+                evictions.increment();
+            }
+        }
+        misses.increment();
+        return defaultValue;
     }
 
+    public void invalidate(K key) {
+        map.remove(key);
+    }
+
+    /**
+     * Hand the value of the future to the cache function when it completes successfully
+     */
     public CompletableFuture<V> wrap(K key, CompletableFuture<V> completableFutureValue) {
+        completableFutureValue.whenComplete((value, ex) -> {
+            if (ex == null) {
+                cache.accept(key, value, this);
+            }
+        });
         return completableFutureValue;
     }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    private void evictExpired(long now) {
+        Entry<K, V> head;
+        while ((head = expiryQueue.peek()) != null && head.expires - now <= 0) {
+            evict(expiryQueue.poll());
+        }
+    }
+
+    // Returns false when there was nothing left to evict
+    private boolean evict(Entry<K, V> entry) {
+        if (entry == null) {
+            return false;
+        }
+        // The entry might have been replaced or removed already
+        if (map.remove(entry.key, entry)) {
+            evictions.increment();
+        }
+        return true;
+    }
+
+    private static final class Entry<K, V> {
+        final K key;
+        final V value;
+        final long expires;
+
+        Entry(K key, V value, long expires) {
+            this.key = key;
+            this.value = value;
+            this.expires = expires;
+        }
+    }
 }
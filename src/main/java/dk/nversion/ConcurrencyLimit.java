@@ -0,0 +1,78 @@
+package dk.nversion;
+
+import java.util.concurrent.TimeUnit;
+
+// AIMD concurrency limit driven by the latencies and failures of completed calls. The limit grows by one per
+// round trip while it is being used and the latency stays close to the no load latency, it is cut by 10% at most
+// once per round trip when calls fail or the latency goes above twice the no load latency.
+final class ConcurrencyLimit {
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // The no load latency is the smallest latency seen in the current and the previous window
+    private static final long MIN_RTT_WINDOW = TimeUnit.SECONDS.toNanos(10);
+    // Floor for the no load latency so jitter on very fast endpoints does not read as overload
+    private static final long MIN_NO_LOAD_RTT = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final PaddedAtomicLong limit;
+    private final PaddedAtomicLong lastDecrease = new PaddedAtomicLong();
+    private final PaddedAtomicLong minRttWindow = new PaddedAtomicLong();
+    private final PaddedAtomicLong minRtt = new PaddedAtomicLong(Long.MAX_VALUE);
+    private final PaddedAtomicLong previousMinRtt = new PaddedAtomicLong(Long.MAX_VALUE);
+
+    ConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        validate(initialLimit, minLimit, maxLimit);
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = new PaddedAtomicLong(Double.doubleToRawLongBits(initialLimit));
+    }
+
+    static void validate(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+    }
+
+    int getLimit() {
+        return (int) Double.longBitsToDouble(limit.get());
+    }
+
+    void onSample(long rtt, boolean failed, long inFlight, long now) {
+        long noLoadRtt = Math.max(updateMinRtt(rtt, now), MIN_NO_LOAD_RTT);
+        long bits = limit.get();
+        double current = Double.longBitsToDouble(bits);
+        double next;
+        if (failed || rtt > noLoadRtt * LATENCY_TOLERANCE) {
+            // Only back off once per round trip, everything in flight sees the same overload
+            long last = lastDecrease.get();
+            if (now - last < noLoadRtt || !lastDecrease.compareAndSet(last, now)) {
+                return;
+            }
+            next = Math.max(minLimit, current * BACKOFF_RATIO);
+
+        } else if (inFlight * 2 >= current) {
+            next = Math.min(maxLimit, current + 1.0 / current);
+
+        } else {
+            return;
+        }
+        // Losing the race to another sample is fine
+        limit.compareAndSet(bits, Double.doubleToRawLongBits(next));
+    }
+
+    private long updateMinRtt(long rtt, long now) {
+        long window = Math.floorDiv(now, MIN_RTT_WINDOW);
+        long currentWindow = minRttWindow.get();
+        if (window != currentWindow && minRttWindow.compareAndSet(currentWindow, window)) {
+            previousMinRtt.set(window - currentWindow == 1 ? minRtt.get() : Long.MAX_VALUE);
+            minRtt.set(rtt);
+        }
+
+        long current;
+        while (rtt < (current = minRtt.get()) && !minRtt.compareAndSet(current, rtt)) {
+            // Retry until the smallest value sticks
+        }
+        return Math.min(minRtt.get(), previousMinRtt.get());
+    }
+}
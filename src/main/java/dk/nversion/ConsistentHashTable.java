@@ -0,0 +1,85 @@
+package dk.nversion;
+
+import java.util.Arrays;
+
+// Maglev lookup table mapping key hashes to positions in the endpoint list. Every endpoint gets an almost equal share
+// of the table and the permutations are seeded by the endpoint indexes, so adding or removing an endpoint only moves
+// the keys of that endpoint.
+final class ConsistentHashTable {
+    // Size used for small pools, larger pools get at least 100 slots per endpoint to keep the spread even
+    static final int MIN_SIZE = 65537;
+
+    private final int[] table;
+
+    ConsistentHashTable(int[] indexes) {
+        int size = indexes.length > 0 ? nextPrime(Math.max(MIN_SIZE, indexes.length * 100)) : 0;
+        table = new int[size];
+        if (indexes.length == 0) {
+            return;
+        }
+        Arrays.fill(table, -1);
+
+        // Each endpoint walks its own permutation of the table and claims the first free slot in turn
+        long[] offsets = new long[indexes.length];
+        long[] skips = new long[indexes.length];
+        long[] next = new long[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            offsets[i] = Math.floorMod(mix(indexes[i], 0x9E3779B97F4A7C15L), size);
+            skips[i] = Math.floorMod(mix(indexes[i], 0xC2B2AE3D27D4EB4FL), size - 1) + 1;
+        }
+        int filled = 0;
+        while (true) {
+            for (int i = 0; i < indexes.length; i++) {
+                int slot = (int) ((offsets[i] + next[i] * skips[i]) % size);
+                while (table[slot] >= 0) {
+                    next[i]++;
+                    slot = (int) ((offsets[i] + next[i] * skips[i]) % size);
+                }
+                table[slot] = i;
+                next[i]++;
+                if (++filled == size) {
+                    return;
+                }
+            }
+        }
+    }
+
+    int size() {
+        return table.length;
+    }
+
+    // Endpoint position for the probe'th slot from the slot the hash maps to, the table must not be empty
+    int get(int hash, int probe) {
+        return table[(int) Math.floorMod((long) hash + probe, (long) table.length)];
+    }
+
+    static int hash(Object key) {
+        return (int) mix(key.hashCode(), 0x9E3779B97F4A7C15L);
+    }
+
+    // Murmur3 finalizer
+    static long mix(long value, long seed) {
+        long h = value ^ seed;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE1A85B4FL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int nextPrime(int value) {
+        for (int candidate = value | 1; ; candidate += 2) {
+            boolean prime = true;
+            for (int i = 3; (long) i * i <= candidate; i += 2) {
+                if (candidate % i == 0) {
+                    prime = false;
+                    break;
+                }
+            }
+            if (prime) {
+                return candidate;
+            }
+        }
+    }
+}
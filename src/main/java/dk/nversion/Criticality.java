@@ -0,0 +1,28 @@
+package dk.nversion;
+
+// How important a call is. When the pool runs short of endpoints or capacity the less critical calls are shed first,
+// calls without a criticality are DEFAULT.
+public enum Criticality {
+    // Resumed first from the queue, and can go 20% over the concurrency limit, queue size and retry and hedge budgets
+    // the other calls have used up
+    CRITICAL(1.2, 0),
+    DEFAULT(1.0, 0),
+    // Batch and background work, it gets half of the capacity and budgets and is rejected while fewer than half of the
+    // endpoints are unsuspended
+    SHEDDABLE(0.5, 0.5);
+
+    // Share of the concurrency limit, queue and retry and hedge budgets the calls can use
+    final double share;
+    // Fraction of the endpoints that must be unsuspended for calls to be accepted
+    final double minimumAvailable;
+
+    Criticality(double share, double minimumAvailable) {
+        this.share = share;
+        this.minimumAvailable = minimumAvailable;
+    }
+
+    // Rounded in favour of the more critical calls, so CRITICAL gets headroom above even the smallest limits
+    long scale(long value) {
+        return share > 1 ? (long) Math.ceil(value * share) : (long) (value * share);
+    }
+}
@@ -0,0 +1,18 @@
+package dk.nversion;
+
+import java.util.concurrent.CompletableFuture;
+
+@FunctionalInterface
+public interface DeadlineFunction<T> {
+
+    /**
+     * Calls the endpoint with the given index.
+     *
+     * @param index the endpoint to call
+     * @param retryCount number of retries left after this attempt
+     * @param deadline System.nanoTime() value the attempt has to complete by, Long.MAX_VALUE when there is no deadline
+     * @return future with the result of the call
+     */
+    CompletableFuture<T> apply(int index, int retryCount, long deadline);
+
+}
@@ -0,0 +1,74 @@
+package dk.nversion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+// Immutable view of the current endpoints together with the lookup structures built from them. Membership and
+// weight changes build a new group and swap it in, so selection reads one volatile field and never locks.
+final class EndpointGroup {
+    static final EndpointGroup EMPTY = new EndpointGroup(new EndpointState[0], false, 0, 0);
+
+    final EndpointState[] endpoints;
+    // The group calls are routed to, the subset of this client when subsetting picked fewer endpoints than there are
+    // and this group otherwise
+    final EndpointGroup routed;
+    // Lookup structures are only built for the routed group
+    final WeightedSchedule weightedSchedule;
+    // Only built for the CONSISTENT_HASH policy
+    final ConsistentHashTable consistentHashTable;
+    // One group per priority ordered from the most preferred, null when all endpoints have the same priority
+    final EndpointGroup[] tiers;
+
+    /**
+     * @param subsetSize number of endpoints to route to, 0 to route to all of them
+     */
+    EndpointGroup(EndpointState[] endpoints, boolean consistentHash, int clientId, int subsetSize) {
+        this(endpoints, subsetSize > 0 && endpoints.length > subsetSize
+                ? new EndpointGroup(Subsetting.select(endpoints, clientId, subsetSize), null, consistentHash, true) : null,
+                consistentHash, true);
+    }
+
+    private EndpointGroup(EndpointState[] endpoints, EndpointGroup subset, boolean consistentHash, boolean tiered) {
+        this.endpoints = endpoints;
+        if (subset != null) {
+            this.routed = subset;
+            this.weightedSchedule = null;
+            this.consistentHashTable = null;
+            this.tiers = null;
+            return;
+        }
+        this.routed = this;
+        int[] weights = new int[endpoints.length];
+        int[] indexes = new int[endpoints.length];
+        TreeMap<Integer, List<EndpointState>> priorities = new TreeMap<>();
+        for (int i = 0; i < endpoints.length; i++) {
+            weights[i] = endpoints[i].weight;
+            indexes[i] = endpoints[i].index;
+            priorities.computeIfAbsent(endpoints[i].priority, priority -> new ArrayList<>()).add(endpoints[i]);
+        }
+        this.weightedSchedule = new WeightedSchedule(weights);
+        this.consistentHashTable = consistentHash ? new ConsistentHashTable(indexes) : null;
+
+        if (tiered && priorities.size() > 1) {
+            this.tiers = new EndpointGroup[priorities.size()];
+            int tier = 0;
+            for (List<EndpointState> members : priorities.values()) {
+                tiers[tier++] = new EndpointGroup(members.toArray(new EndpointState[0]), null, consistentHash, false);
+            }
+
+        } else {
+            this.tiers = null;
+        }
+    }
+
+    // Position of the endpoint with the given index, -1 if it is not in the group
+    int positionOf(int index) {
+        for (int i = 0; i < endpoints.length; i++) {
+            if (endpoints[i].index == index) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
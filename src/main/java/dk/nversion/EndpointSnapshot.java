@@ -0,0 +1,140 @@
+package dk.nversion;
+
+/**
+ * Point in time view of the statistics for a single endpoint
+ */
+public final class EndpointSnapshot {
+    static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private final int index;
+    private final long successCount;
+    private final long failureCount;
+    private final long suspendedUntil;
+    private final long latency;
+    private final long inFlight;
+    private final long ewmaLatency;
+    private final boolean draining;
+    // Sample count followed by the PERCENTILES
+    private final long[] latencies;
+    private final long[] failureLatencies;
+    private final CircuitBreakerState circuitBreakerState;
+    private final int concurrencyLimit;
+
+    EndpointSnapshot(int index, long successCount, long failureCount, long suspendedUntil, long latency, long inFlight, long ewmaLatency, boolean draining,
+                     long[] latencies, long[] failureLatencies, CircuitBreakerState circuitBreakerState, int concurrencyLimit) {
+        this.index = index;
+        this.successCount = successCount;
+        this.failureCount = failureCount;
+        this.suspendedUntil = suspendedUntil;
+        this.latency = latency;
+        this.inFlight = inFlight;
+        this.ewmaLatency = ewmaLatency;
+        this.draining = draining;
+        this.latencies = latencies;
+        this.failureLatencies = failureLatencies;
+        this.circuitBreakerState = circuitBreakerState;
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public long getSuccessCount() {
+        return successCount;
+    }
+
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * @return time in milliseconds the endpoint is suspended until, 0 if it has never been suspended
+     */
+    public long getSuspendedUntil() {
+        return suspendedUntil;
+    }
+
+    /**
+     * @return last measured latency in nanoseconds, only tracked for the LATENCY_LAST policy
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return number of calls currently outstanding against the endpoint
+     */
+    public long getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return peak EWMA latency in nanoseconds, only tracked for the PEAK_EWMA policy
+     */
+    public long getEwmaLatency() {
+        return ewmaLatency;
+    }
+
+    /**
+     * @return true if the endpoint takes no new calls and will be removed once the calls in flight have completed
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * @return number of successful calls in the latency window, the last 10 to 20 seconds
+     */
+    public long getLatencyCount() {
+        return latencies[0];
+    }
+
+    /**
+     * @return median latency in nanoseconds of the successful calls in the latency window, -1 if there are none
+     */
+    public long getLatencyP50() {
+        return latencies[1];
+    }
+
+    public long getLatencyP90() {
+        return latencies[2];
+    }
+
+    public long getLatencyP99() {
+        return latencies[3];
+    }
+
+    public long getLatencyP999() {
+        return latencies[4];
+    }
+
+    /**
+     * @return number of failed calls in the latency window
+     */
+    public long getFailureLatencyCount() {
+        return failureLatencies[0];
+    }
+
+    /**
+     * @return median latency in nanoseconds of the failed calls in the latency window, -1 if there are none
+     */
+    public long getFailureLatencyP50() {
+        return failureLatencies[1];
+    }
+
+    public long getFailureLatencyP99() {
+        return failureLatencies[3];
+    }
+
+    public CircuitBreakerState getCircuitBreakerState() {
+        return circuitBreakerState;
+    }
+
+    /**
+     * @return current adaptive concurrency limit of the endpoint, -1 if it has none
+     */
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+}
@@ -0,0 +1,162 @@
+package dk.nversion;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Everything the load balancer tracks about a single endpoint. Counters written on every completion are
+// striped and the values read on every selection live on their own cache lines.
+final class EndpointState {
+    // Latency percentiles are computed over the last 10 to 20 seconds
+    static final long LATENCY_WINDOW = TimeUnit.SECONDS.toNanos(10);
+    // How often the hedge delay is recomputed from the histogram
+    private static final long HEDGE_DELAY_REFRESH = TimeUnit.MILLISECONDS.toNanos(100);
+    // Read in place of the histograms of endpoints that have not completed a call yet, never recorded to
+    private static final LatencyHistogram EMPTY_HISTOGRAM = new LatencyHistogram(LATENCY_WINDOW);
+
+    final int index;
+    final LongAdder successes = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    final PaddedAtomicLong suspendedUntil = new PaddedAtomicLong();
+    final PaddedAtomicLong latency = new PaddedAtomicLong();
+    final PaddedAtomicLong inFlight = new PaddedAtomicLong();
+    final PaddedAtomicLong ewma = new PaddedAtomicLong(Double.doubleToRawLongBits(0.0));
+    final PaddedAtomicLong ewmaTime = new PaddedAtomicLong();
+    volatile int weight = 1;
+    // Lower priorities are preferred, higher ones only get the traffic the lower ones can't take
+    volatile int priority = 0;
+    ConcurrencyLimit limit;
+    CircuitBreaker breaker;
+    // Set once the endpoint is draining, completes when the last call in flight does
+    private volatile CompletableFuture<Void> drained;
+    volatile boolean removed = false;
+    // False when subsetting left the endpoint out of the ones this client routes to
+    volatile boolean routed = true;
+    // Time in milliseconds outlier detection has ejected the endpoint until, 0 when it is not ejected
+    final PaddedAtomicLong ejectedUntil = new PaddedAtomicLong();
+    // Sum of the latencies of successful calls, only tracked when outlier detection is on
+    final LongAdder latencySum = new LongAdder();
+    // Outlier detection state, only touched by the detection pass
+    int ejections = 0;
+    long detectedSuccesses = 0;
+    long detectedFailures = 0;
+    long detectedLatencySum = 0;
+    final AtomicInteger monitorHealthyCount = new AtomicInteger();
+    final AtomicInteger monitorUnhealthyCount = new AtomicInteger();
+    // Set while a health check is scheduled, checks stop while the endpoint is not routed to
+    final AtomicBoolean monitorScheduled = new AtomicBoolean();
+    // System.nanoTime of the last successful call, only tracked when health checks are on. Starts far enough in the
+    // past to never look recent without overflowing the difference.
+    final PaddedAtomicLong lastSuccess;
+    // Created by the first call, so endpoints this client does not route to don't pay for them
+    private volatile LatencyHistogram latencies;
+    private volatile LatencyHistogram failureLatencies;
+    private final PaddedAtomicLong hedgeDelay = new PaddedAtomicLong(-1);
+    private final PaddedAtomicLong hedgeDelayTime;
+
+    EndpointState(int index, long now) {
+        this.index = index;
+        this.lastSuccess = new PaddedAtomicLong(now - (1L << 62));
+        this.hedgeDelayTime = new PaddedAtomicLong(now - HEDGE_DELAY_REFRESH);
+    }
+
+    // Suspended by the monitor, an open circuit breaker, outlier detection or because it is draining
+    boolean isSuspended(long now) {
+        return suspendedUntil.get() >= now || (breaker != null && !breaker.isCallPermitted(now)) || ejectedUntil.get() >= now || drained != null;
+    }
+
+    // Called when an attempt on this endpoint completes
+    void release() {
+        if (inFlight.decrementAndGet() == 0) {
+            CompletableFuture<Void> drained = this.drained;
+            if (drained != null) {
+                drained.complete(null);
+            }
+        }
+    }
+
+    synchronized CompletableFuture<Void> drain() {
+        if (drained == null) {
+            drained = new CompletableFuture<>();
+            // Calls that picked the endpoint just before it started draining might still be on their way
+            if (inFlight.get() == 0) {
+                drained.complete(null);
+            }
+        }
+        return drained;
+    }
+
+    void recordLatency(long latency, boolean failed, long now) {
+        LatencyHistogram histogram = failed ? failureLatencies : latencies;
+        if (histogram == null) {
+            histogram = newHistogram(failed);
+        }
+        histogram.record(latency, now);
+    }
+
+    private synchronized LatencyHistogram newHistogram(boolean failed) {
+        if (failed) {
+            if (failureLatencies == null) {
+                failureLatencies = new LatencyHistogram(LATENCY_WINDOW);
+            }
+            return failureLatencies;
+        }
+        if (latencies == null) {
+            latencies = new LatencyHistogram(LATENCY_WINDOW);
+        }
+        return latencies;
+    }
+
+    boolean isDraining() {
+        return drained != null;
+    }
+
+    double getEwma() {
+        return Double.longBitsToDouble(ewma.get());
+    }
+
+    // Peak EWMA: jump straight to samples above the current average, decay exponentially towards lower ones
+    void updateEwma(double sample, long now, long decayTime) {
+        while (true) {
+            long bits = ewma.get();
+            double current = Double.longBitsToDouble(bits);
+            double next = sample;
+            if (sample < current) {
+                double weight = Math.exp(-Math.max(now - ewmaTime.get(), 0) / (double) decayTime);
+                next = current * weight + sample * (1.0 - weight);
+            }
+            if (ewma.compareAndSet(bits, Double.doubleToRawLongBits(next))) {
+                ewmaTime.set(now);
+                return;
+            }
+        }
+    }
+
+    // Latency percentile in nanoseconds cached for a short while as computing it reads the whole histogram
+    long getHedgeDelay(double percentile, long minCount, long now) {
+        long time = hedgeDelayTime.get();
+        if (now - time >= HEDGE_DELAY_REFRESH && hedgeDelayTime.compareAndSet(time, now)) {
+            LatencyHistogram latencies = this.latencies;
+            hedgeDelay.set(latencies != null ? latencies.percentile(percentile, minCount, now) : -1);
+        }
+        return hedgeDelay.get();
+    }
+
+    // Not suspended and below its concurrency limit
+    boolean isAvailable(long now) {
+        ConcurrencyLimit limit = this.limit;
+        return !isSuspended(now) && (limit == null || inFlight.get() < limit.getLimit());
+    }
+
+    EndpointSnapshot snapshot(long now) {
+        long suspended = Math.max(Math.max(suspendedUntil.get(), ejectedUntil.get()), breaker != null ? breaker.getOpenUntil() : 0);
+        ConcurrencyLimit limit = this.limit;
+        LatencyHistogram latencies = this.latencies != null ? this.latencies : EMPTY_HISTOGRAM;
+        LatencyHistogram failureLatencies = this.failureLatencies != null ? this.failureLatencies : EMPTY_HISTOGRAM;
+        return new EndpointSnapshot(index, successes.sum(), failures.sum(), suspended, latency.get(), inFlight.get(), (long) getEwma(), isDraining(),
+                latencies.summary(EndpointSnapshot.PERCENTILES, now), failureLatencies.summary(EndpointSnapshot.PERCENTILES, now),
+                breaker != null ? breaker.getState() : CircuitBreakerState.CLOSED, limit != null ? limit.getLimit() : -1);
+    }
+}
@@ -0,0 +1,185 @@
+package dk.nversion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed timer wheel shared by all load balancers. Scheduling is a lock-free queue offer and cancelling is a CAS,
+// timeouts are only bucketed and fired by the single worker thread, so hundreds of thousands of outstanding
+// timeouts cost one object each and no extra threads. Tasks run on the worker thread and must not block. A timer
+// on a simulated time source has no worker, it fires the timeouts that are due when advance is called.
+final class HashedWheelTimer {
+    private static final long DEFAULT_TICK = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long tick;
+    private final List<List<Timeout>> wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger state = new AtomicInteger(0);
+    private final TimeSource time;
+    private final Thread worker;
+    private long startTime;
+    // Only touched by the worker thread, or the thread calling advance
+    private long ticks = 0;
+
+    private static final class DefaultHolder {
+        static final HashedWheelTimer DEFAULT = new HashedWheelTimer(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    static HashedWheelTimer getDefault() {
+        return DefaultHolder.DEFAULT;
+    }
+
+    HashedWheelTimer(long tick, int wheelSize) {
+        this(tick, wheelSize, TimeSource.SYSTEM, true);
+    }
+
+    HashedWheelTimer(long tick, int wheelSize, TimeSource time) {
+        this(tick, wheelSize, time, false);
+        startTime = time.nanoTime();
+        state.set(1);
+    }
+
+    private HashedWheelTimer(long tick, int wheelSize, TimeSource time, boolean threaded) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of two");
+        }
+        this.tick = tick;
+        this.mask = wheelSize - 1;
+        this.wheel = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        this.time = time;
+        if (threaded) {
+            this.worker = new Thread(this::run, "loadbalancer4java-timer");
+            this.worker.setDaemon(true);
+
+        } else {
+            this.worker = null;
+        }
+    }
+
+    TimeSource getTimeSource() {
+        return time;
+    }
+
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        // Start the worker on first use
+        if (state.get() == 0 && state.compareAndSet(0, 1)) {
+            startTime = time.nanoTime();
+            worker.start();
+        }
+        Timeout timeout = new Timeout(task, time.nanoTime() + unit.toNanos(delay));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    void stop() {
+        if (state.getAndSet(2) == 1 && worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    private void run() {
+        while (state.get() == 1) {
+            // Sleep until the next tick is due
+            long deadline = startTime + (ticks + 1) * tick;
+            long now = time.nanoTime();
+            while (deadline - now > 0) {
+                LockSupport.parkNanos(deadline - now);
+                if (state.get() != 1) {
+                    return;
+                }
+                now = time.nanoTime();
+            }
+            expireTick();
+        }
+    }
+
+    // Fire the timeouts that are due by the current time of a simulated time source, tasks scheduled by the
+    // timeouts fire in the same call when they are due
+    void advance() {
+        if (worker != null) {
+            throw new IllegalStateException("Timer is driven by its worker thread");
+        }
+        long now = time.nanoTime();
+        while (state.get() == 1 && startTime + (ticks + 1) * tick - now <= 0) {
+            expireTick();
+        }
+    }
+
+    private void expireTick() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (!timeout.isCancelled()) {
+                // Late timeouts go in the current bucket so they fire on this tick
+                long due = Math.max((timeout.deadline - startTime) / tick, ticks);
+                timeout.rounds = (due - ticks) / wheel.size();
+                wheel.get((int) (due & mask)).add(timeout);
+            }
+        }
+
+        List<Timeout> bucket = wheel.get((int) (ticks & mask));
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            timeout = bucket.get(i);
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            timeout.expire();
+        }
+        bucket.subList(kept, bucket.size()).clear();
+        ticks++;
+    }
+
+    static final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // Only touched by the worker thread
+        private long rounds;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if the timeout already fired or was cancelled
+         */
+        boolean cancel() {
+            return state.compareAndSet(WAITING, CANCELLED);
+        }
+
+        boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        private void expire() {
+            if (state.compareAndSet(WAITING, EXPIRED)) {
+                try {
+                    task.run();
+
+                } catch (RuntimeException ex) {
+                    // A failing task must not stop the worker
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+                }
+            }
+        }
+    }
+}
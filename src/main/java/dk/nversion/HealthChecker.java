@@ -0,0 +1,169 @@
+package dk.nversion;
+
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// Active health checks for the endpoints of one load balancer. Checks run on the shared timer wheel so any number of
+// load balancers share a single thread, and every endpoint has its own schedule starting at a random offset with
+// jitter on each interval, so checks are spread out instead of hitting all endpoints at once. Endpoints that have
+// served a successful call within the last interval are not checked. The checks themselves run on the executor, so
+// a check function that blocks does not stall the timer.
+final class HealthChecker {
+    static final int DEFAULT_MAX_CONCURRENT_CHECKS = 100;
+    // Each interval is randomly made up to 10% shorter or longer
+    private static final double JITTER = 0.1;
+
+    private final HashedWheelTimer timer;
+    private final long interval;
+    private final int unhealthyThreshold;
+    private final int healthyThreshold;
+    private final int maxConcurrentChecks;
+    private final long timeout;
+    private final Function<Integer, CompletableFuture<Boolean>> function;
+    private final LoadBalancerListener listener;
+    // ThreadLocalRandom is used when it is null
+    private final Random random;
+    private final Executor executor;
+    private final AtomicInteger checksInFlight = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    HealthChecker(HashedWheelTimer timer, long interval, int unhealthyThreshold, int healthyThreshold, int maxConcurrentChecks,
+                  long timeout, Function<Integer, CompletableFuture<Boolean>> function, LoadBalancerListener listener, Random random,
+                  Executor executor) {
+        this.timer = timer;
+        this.interval = interval;
+        this.unhealthyThreshold = unhealthyThreshold;
+        this.healthyThreshold = healthyThreshold;
+        this.maxConcurrentChecks = maxConcurrentChecks;
+        this.timeout = timeout;
+        this.function = function;
+        this.listener = listener;
+        this.random = random;
+        this.executor = executor;
+    }
+
+    // Does nothing for endpoints that are not routed to or already have a check scheduled
+    void start(EndpointState endpoint) {
+        if (endpoint.routed && endpoint.monitorScheduled.compareAndSet(false, true)) {
+            schedule(endpoint, (long) (random().nextDouble() * (interval + 1)));
+        }
+    }
+
+    // Checks already scheduled fire once more and do nothing
+    void close() {
+        closed = true;
+    }
+
+    private void schedule(EndpointState endpoint, long delay) {
+        if (!closed && !endpoint.removed) {
+            timer.schedule(() -> executor.execute(() -> check(endpoint)), delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private long nextInterval() {
+        long jitter = (long) (interval * JITTER);
+        return interval - jitter + (long) (random().nextDouble() * (2 * jitter + 1));
+    }
+
+    private Random random() {
+        return random != null ? random : ThreadLocalRandom.current();
+    }
+
+    private void check(EndpointState endpoint) {
+        if (closed || endpoint.removed) {
+            return;
+        }
+        // Not routed to by this client, checks start again when it rejoins the subset. If it rejoined while this
+        // check was pending start() found it still scheduled, so this check carries on instead.
+        if (!endpoint.routed) {
+            endpoint.monitorUnhealthyCount.set(0);
+            endpoint.monitorScheduled.set(false);
+            if (!endpoint.routed || !endpoint.monitorScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+        // Real traffic has shown the endpoint to be healthy unless the checks have taken it out of rotation
+        if (endpoint.suspendedUntil.get() != Long.MAX_VALUE && timer.getTimeSource().nanoTime() - endpoint.lastSuccess.get() < interval) {
+            endpoint.monitorUnhealthyCount.set(0);
+            schedule(endpoint, nextInterval());
+            return;
+        }
+        // Skip this round rather than piling up checks against slow endpoints
+        if (checksInFlight.incrementAndGet() > maxConcurrentChecks) {
+            checksInFlight.decrementAndGet();
+            schedule(endpoint, nextInterval());
+            return;
+        }
+
+        CompletableFuture<Boolean> future = null;
+        try {
+            future = function.apply(endpoint.index);
+
+        } catch (Exception ex) {
+            // Got exception trying to create the future, counted as unhealthy below
+        }
+        if (future == null) {
+            checksInFlight.decrementAndGet();
+            onResult(endpoint, false);
+            schedule(endpoint, nextInterval());
+            return;
+        }
+        // The check function's future is left alone, only our copy of it times out
+        CompletableFuture<Boolean> check = new CompletableFuture<>();
+        HashedWheelTimer.Timeout checkTimeout = timer.schedule(() -> executor.execute(() -> check.completeExceptionally(new TimeoutException("Health check timed out"))),
+                timeout, TimeUnit.NANOSECONDS);
+        future.whenComplete((result, ex) -> {
+            checkTimeout.cancel();
+            if (ex != null) {
+                check.completeExceptionally(ex);
+
+            } else {
+                check.complete(result);
+            }
+        });
+        check.whenComplete((result, ex) -> {
+            checksInFlight.decrementAndGet();
+            onResult(endpoint, ex == null && Boolean.TRUE.equals(result));
+            schedule(endpoint, nextInterval());
+        });
+    }
+
+    private void onResult(EndpointState endpoint, boolean healthy) {
+        if (healthy) {
+            // Unset suspension time when we hit the healthy threshold
+            if(endpoint.monitorHealthyCount.incrementAndGet() >= healthyThreshold) {
+                boolean recovered = endpoint.suspendedUntil.getAndSet(0) == Long.MAX_VALUE;
+                if(endpoint.breaker != null && endpoint.breaker.close()) {
+                    recovered = true;
+                }
+                if(recovered && listener != null) {
+                    listener.onRecovered(endpoint.index);
+                }
+                endpoint.monitorHealthyCount.set(0);
+            }
+            // Reset unhealthy counter
+            if(endpoint.monitorUnhealthyCount.get() > 0) {
+                endpoint.monitorUnhealthyCount.set(0);
+            }
+
+        } else {
+            // Set suspension time when we hit the unhealthy threshold
+            if(endpoint.monitorUnhealthyCount.incrementAndGet() >= unhealthyThreshold) {
+                if(endpoint.suspendedUntil.getAndSet(Long.MAX_VALUE) != Long.MAX_VALUE && listener != null) {
+                    listener.onSuspended(endpoint.index);
+                }
+                endpoint.monitorUnhealthyCount.set(0);
+            }
+            // Reset healthy counter
+            if(endpoint.monitorHealthyCount.get() > 0) {
+                endpoint.monitorHealthyCount.set(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package dk.nversion;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear latency histogram in nanoseconds over a rolling window, every power of two is split in 8 buckets so
+// values are within 12.5% of the real value. Recording is a single atomic increment and allocates nothing.
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    // Two windows, the current one and the one before it so percentiles don't reset at every rotation
+    private final AtomicLongArray[] windows = { new AtomicLongArray(BUCKETS), new AtomicLongArray(BUCKETS) };
+    private final AtomicLong window = new AtomicLong();
+    private final long windowLength;
+
+    LatencyHistogram(long windowLength) {
+        this.windowLength = windowLength;
+    }
+
+    void record(long latency, long now) {
+        windows[rotate(now)].incrementAndGet(bucket(Math.max(latency, 0)));
+    }
+
+    /**
+     * @return latency at the given percentile (0-100) over the last one to two windows or -1 if there are fewer than minCount samples
+     */
+    long percentile(double percentile, long minCount, long now) {
+        int current = rotate(now);
+        AtomicLongArray previous = windows[current ^ 1];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += windows[current].get(i) + previous.get(i);
+        }
+        if (count == 0 || count < minCount) {
+            return -1;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += windows[current].get(i) + previous.get(i);
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * @return number of samples in the last one to two windows followed by the latencies at the given percentiles,
+     * -1 for each percentile if there are no samples
+     */
+    long[] summary(double[] percentiles, long now) {
+        int current = rotate(now);
+        AtomicLongArray previous = windows[current ^ 1];
+        // Copy once so the count and all percentiles are computed from the same samples
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = windows[current].get(i) + previous.get(i);
+            count += counts[i];
+        }
+
+        long[] summary = new long[percentiles.length + 1];
+        summary[0] = count;
+        for (int p = 0; p < percentiles.length; p++) {
+            long rank = (long) Math.ceil(count * percentiles[p] / 100.0);
+            long seen = 0;
+            summary[p + 1] = count == 0 ? -1 : upperBound(BUCKETS - 1);
+            for (int i = 0; i < BUCKETS && count > 0; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    summary[p + 1] = upperBound(i);
+                    break;
+                }
+            }
+        }
+        return summary;
+    }
+
+    // Moves to the window for now and returns its slot, the slot being moved into is cleared first
+    private int rotate(long now) {
+        long number = Math.floorDiv(now, windowLength);
+        long current = window.get();
+        if (number > current && window.compareAndSet(current, number)) {
+            clear(windows[(int) (number & 1)]);
+            if (number - current > 1) {
+                // Both windows are stale
+                clear(windows[(int) ((number + 1) & 1)]);
+            }
+        }
+        return (int) (number & 1);
+    }
+
+    private static void clear(AtomicLongArray counts) {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // Largest value that falls in the bucket
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -3,238 +3,1545 @@ package dk.nversion;
 import java.lang.Integer;
 import java.lang.Object;
 import java.lang.System;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicIntegerArray;
-import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
-public class LoadBalancer {
+public class LoadBalancer implements AutoCloseable {
     // Configured
     private int retries = 0;
+    private TokenBucket retryBudget;
+    private long retryBackoff = 0;
+    private long maxRetryBackoff = 0;
     private int endpointCount = 1;
-    private int failureRateMaxFailures = 0;
-    private TimeUnit failureRateTimeUnit;
-    private long failureRateTime;
     private LoadBalancerPolicy policy = LoadBalancerPolicy.ROUND_ROBIN;
 
-    private long suspensionTime = 0;
-    private TimeUnit suspensionTimeUnit;
+    // Circuit breaker, disabled while breakerOpenTime is 0
+    private double breakerFailureRate;
+    private int breakerMinimumCalls;
+    private int breakerMinimumFailures;
+    private long breakerWindow;
+    private long breakerOpenTime = 0;
 
-    private AtomicLongArray[] failureTimes;
-    private AtomicLongArray suspensionTimes;
+    // Failed calls are counted as this many times the endpoints latency for PEAK_EWMA
+    private static final double EWMA_FAILURE_PENALTY = 10.0;
+    private long ewmaDecayTime = TimeUnit.SECONDS.toNanos(10);
 
-    private AtomicInteger indexGenerator = new AtomicInteger(0);
-    private AtomicLongArray successCounters;
-    private AtomicLongArray failureCounters;
+    // Copy on write, changes are serialized on this and swap in a new group
+    private volatile EndpointGroup group = EndpointGroup.EMPTY;
+    private int nextEndpointIndex = 0;
+    // Table slots tried per endpoint for a consistent hash key before the endpoints are walked in order instead
+    private static final int CONSISTENT_HASH_PROBES = 4;
 
-    private Map<Object,AtomicInteger> retryCounters = new ConcurrentHashMap<>();
+    private AtomicInteger indexGenerator = new AtomicInteger(0);
+    private int[] weights;
+    private int[] priorities;
+    // A priority tier takes all the traffic while this fraction of its endpoints is available, below it the rest
+    // spills over to the next tier in proportion
+    private double spilloverThreshold = 0.7;
+    // Route to a deterministic subset of the endpoints picked for this client, 0 to route to all of them
+    private int subsetClientId;
+    private int subsetSize = 0;
 
-    ScheduledExecutorService scheduledExecutorService;
     private long monitorCheckInterval;
     private TimeUnit monitorCheckTimeUnit;
     private int monitorUnhealthyThreshold;
     private int monitorHealthyThreshold;
-    private AtomicIntegerArray monitorUnhealthyCounters;
-    private AtomicIntegerArray monitorHealthyCounters;
+    private int monitorMaxConcurrentChecks = HealthChecker.DEFAULT_MAX_CONCURRENT_CHECKS;
+    private long monitorTimeout = 0;
     private Function<Integer, CompletableFuture<Boolean>> monitorFunction;
+    private HealthChecker healthChecker;
+    // Outlier detection, disabled while outlierInterval is 0
+    private long outlierInterval = 0;
+    private double outlierDeviations;
+    private int outlierMinimumCalls;
+    private double outlierMaxEjectionRate;
+    private long outlierEjectionTime;
+    private OutlierDetector outlierDetector;
+    private LoadBalancerListener listener;
+    private volatile boolean closed = false;
+
+    private CompletableFutureCache<?, ?> cache;
+    private long cacheRefreshInterval;
+    private TimeUnit cacheRefreshTimeUnit;
+    private Runnable cacheRefresh;
+
+    private HashedWheelTimer timer = HashedWheelTimer.getDefault();
+    private TimeSource time = TimeSource.SYSTEM;
+    // Only set for simulations that have to be reproducible, ThreadLocalRandom is used otherwise
+    private Random random;
+    // Runs the user functions that timer tasks call, so a function that blocks does not stall the shared timer
+    private Executor executor = ForkJoinPool.commonPool();
+    private long attemptTimeout = 0;
+    private long callDeadline = 0;
 
-    private AtomicLongArray latencyTimes;
+    // Samples needed in the latency window of an endpoint before calls to it are hedged
+    private static final long HEDGE_MIN_SAMPLES = 100;
+    private double hedgePercentile = 0;
+    private TokenBucket hedgeBudget;
+
+    private ConcurrencyLimit concurrencyLimit;
+    private final PaddedAtomicLong inFlight = new PaddedAtomicLong();
+    private int endpointLimit = 0;
+    private int endpointMinLimit;
+    private int endpointMaxLimit;
+    private int maxQueueSize = 0;
+    private long queueTimeout = 0;
+    // One queue per criticality, the most critical waiters are resumed first
+    private final List<ConcurrentLinkedQueue<Waiter>> queues = newQueues();
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private static final Criticality[] CRITICALITIES = Criticality.values();
+    // How often the share of unsuspended endpoints used for shedding and the tier shares are recomputed
+    private static final long AVAILABILITY_REFRESH = TimeUnit.MILLISECONDS.toNanos(10);
+    private final PaddedAtomicLong availability = new PaddedAtomicLong(Double.doubleToRawLongBits(1.0));
+    private final PaddedAtomicLong availabilityTime = new PaddedAtomicLong();
+    private volatile TierShares tierShares;
+    private final PaddedAtomicLong tierSharesTime = new PaddedAtomicLong();
+
+    private boolean coalescing = false;
+    private final ConcurrentHashMap<Object, CompletableFuture<?>> coalescedCalls = new ConcurrentHashMap<>();
 
     public <T> CompletableFuture<T> wrap(Supplier<CompletableFuture<T>> function)   {
-        CompletableFuture<T> result = new CompletableFuture<>();
-        retryHelper((index, retryCount) -> function.get(), result);
-        return result;
+        return dispatch(null, Criticality.DEFAULT, null, null, null, function);
     }
 
     public <T> CompletableFuture<T> wrap(Function<Integer, CompletableFuture<T>> function)   {
-        CompletableFuture<T> result = new CompletableFuture<>();
-        retryHelper((index, retryCount) -> function.apply(index), result);
-        return result;
+        return dispatch(null, Criticality.DEFAULT, null, null, function, null);
     }
 
     public <T> CompletableFuture<T> wrap(BiFunction<Integer, Integer, CompletableFuture<T>> function)   {
-        CompletableFuture<T> result = new CompletableFuture<>();
-        retryHelper(function, result);
-        return result;
+        return dispatch(null, Criticality.DEFAULT, null, function, null, null);
     }
 
-    private <T> void retryHelper (BiFunction<Integer, Integer, CompletableFuture<T>> function, CompletableFuture<T> result) {
-        final int retries = doRetry(function);
-        final int index = getNextIndex(function);
-        final long start = System.currentTimeMillis();
-        if(index > -1) {
-            try {
-                function.apply(index, retries).whenComplete((obj, ex) -> {
-                    if (ex == null) {
-                        registerSuccess(function, index, start);
-                        result.complete(obj);
-
-                    } else {
-                        if (retries > 0) {
-                            registerFailure(function, index, false);
-                            retryHelper(function, result);
-
-                        } else {
-                            registerFailure(function, index, true);
-                            result.completeExceptionally(ex);
+    /**
+     * Wrap a call that is given the deadline of the attempt so it can be passed on to the backend
+     */
+    public <T> CompletableFuture<T> wrap(DeadlineFunction<T> function)   {
+        return dispatch(null, Criticality.DEFAULT, function, null, null, null);
+    }
+
+    /**
+     * Wrap a call for a key, calls with the same key go to the same endpoint with the CONSISTENT_HASH policy,
+     * are served from the cache without calling an endpoint when one has been set and share the call already in
+     * flight for the key when coalescing is enabled
+     */
+    public <T> CompletableFuture<T> wrap(Object key, Supplier<CompletableFuture<T>> function)   {
+        return dispatch(key, Criticality.DEFAULT, null, null, null, function);
+    }
+
+    public <T> CompletableFuture<T> wrap(Object key, Function<Integer, CompletableFuture<T>> function)   {
+        return dispatch(key, Criticality.DEFAULT, null, null, function, null);
+    }
+
+    public <T> CompletableFuture<T> wrap(Object key, BiFunction<Integer, Integer, CompletableFuture<T>> function)   {
+        return dispatch(key, Criticality.DEFAULT, null, function, null, null);
+    }
+
+    public <T> CompletableFuture<T> wrap(Object key, DeadlineFunction<T> function)   {
+        return dispatch(key, Criticality.DEFAULT, function, null, null, null);
+    }
+
+    /**
+     * Wrap a call with a criticality, when endpoints are suspended or the load balancer is at its concurrency limit
+     * the less critical calls are rejected or queued first
+     */
+    public <T> CompletableFuture<T> wrap(Criticality criticality, Supplier<CompletableFuture<T>> function)   {
+        return wrap(criticality, null, function);
+    }
+
+    public <T> CompletableFuture<T> wrap(Criticality criticality, Function<Integer, CompletableFuture<T>> function)   {
+        return wrap(criticality, null, function);
+    }
+
+    public <T> CompletableFuture<T> wrap(Criticality criticality, BiFunction<Integer, Integer, CompletableFuture<T>> function)   {
+        return wrap(criticality, null, function);
+    }
+
+    public <T> CompletableFuture<T> wrap(Criticality criticality, DeadlineFunction<T> function)   {
+        return wrap(criticality, null, function);
+    }
+
+    public <T> CompletableFuture<T> wrap(Criticality criticality, Object key, Supplier<CompletableFuture<T>> function)   {
+        return dispatch(key, orDefault(criticality), null, null, null, function);
+    }
+
+    public <T> CompletableFuture<T> wrap(Criticality criticality, Object key, Function<Integer, CompletableFuture<T>> function)   {
+        return dispatch(key, orDefault(criticality), null, null, function, null);
+    }
+
+    public <T> CompletableFuture<T> wrap(Criticality criticality, Object key, BiFunction<Integer, Integer, CompletableFuture<T>> function)   {
+        return dispatch(key, orDefault(criticality), null, function, null, null);
+    }
+
+    public <T> CompletableFuture<T> wrap(Criticality criticality, Object key, DeadlineFunction<T> function)   {
+        return dispatch(key, orDefault(criticality), function, null, null, null);
+    }
+
+    /**
+     * Run a blocking call on the calling thread, it is retried, counted and limited the same way as wrapped calls
+     */
+    public <T> T call(Callable<T> callable) throws Exception {
+        return call(Criticality.DEFAULT, null, (index, retryCount, deadline) -> callable.call());
+    }
+
+    public <T> T call(BlockingFunction<T> function) throws Exception {
+        return call(Criticality.DEFAULT, null, function);
+    }
+
+    public <T> T call(Object key, BlockingFunction<T> function) throws Exception {
+        return call(Criticality.DEFAULT, key, function);
+    }
+
+    public <T> T call(Criticality criticality, BlockingFunction<T> function) throws Exception {
+        return call(criticality, null, function);
+    }
+
+    /**
+     * Run a blocking call for a key on the calling thread. Waiting for capacity and retry backoff park the thread
+     * without holding a monitor, so virtual threads are unmounted while they wait. Attempts can't be interrupted,
+     * the timeout and deadline are passed to the function and blocking calls are not hedged or cached. An
+     * InterruptedException thrown by the function is passed on straight away and not retried.
+     *
+     * @throws LoadBalancerException if the call was rejected, otherwise the exception of the last attempt
+     */
+    public <T> T call(Criticality criticality, Object key, BlockingFunction<T> function) throws Exception {
+        criticality = orDefault(criticality);
+        if (isShed(criticality)) {
+            throw rejected("Load shed");
+        }
+        long deadline = callDeadline > 0 ? time.nanoTime() + callDeadline : 0;
+        boolean permit = false;
+        BitSet failed = null;
+        int attempt = 0;
+        try {
+            while (true) {
+                if (callDeadline > 0 && time.nanoTime() - deadline >= 0) {
+                    throw new TimeoutException("Deadline exceeded");
+                }
+                if (concurrencyLimit != null && !permit) {
+                    while (!acquirePermit(criticality)) {
+                        awaitCapacity(criticality);
+                    }
+                    permit = true;
+                }
+
+                EndpointState endpoint = getNextEndpoint(key, failed);
+                if (endpoint == null) {
+                    if (endpointLimit > 0 && hasUnsuspendedEndpoint()) {
+                        // Endpoints are at their limits, wait for one of them to free up
+                        if (permit) {
+                            permit = false;
+                            releasePermit();
                         }
+                        awaitCapacity(criticality);
+                        continue;
                     }
-                });
+                    throw rejected("All backends suspended");
+                }
 
-            } catch (Exception e) {
-                if (retries > 0) {
-                    registerFailure(function, index, false);
-                    retryHelper(function, result);
+                long start = time.nanoTime();
+                long timeout = attemptTimeout;
+                if (callDeadline > 0) {
+                    long remaining = Math.max(deadline - start, 1);
+                    timeout = timeout > 0 ? Math.min(timeout, remaining) : remaining;
+                }
+                startAttempt(endpoint);
+                T result;
+                try {
+                    result = function.apply(endpoint.index, retries - attempt, timeout > 0 ? start + timeout : Long.MAX_VALUE);
 
-                } else {
-                    registerFailure(function, index, true);
-                    result.completeExceptionally(e);
+                } catch (InterruptedException ex) {
+                    // The caller was interrupted, not failed by the endpoint, so give up without counting or retrying
+                    cancelAttempt(endpoint);
+                    throw ex;
+
+                } catch (Throwable ex) {
+                    registerFailure(endpoint, start);
+                    if (!(ex instanceof Exception) || attempt >= retries || (retryBudget != null && !retryBudget.withdraw(1 - criticality.share))) {
+                        throw ex;
+                    }
+                    if (failed == null) {
+                        failed = new BitSet();
+                    }
+                    failed.set(endpoint.index);
+                    attempt++;
+                    if (listener != null) {
+                        listener.onRetry(attempt, ex);
+                    }
+                    if (retryBackoff > 0) {
+                        long delay = getRetryBackoff(attempt);
+                        if (callDeadline > 0 && time.nanoTime() + delay - deadline >= 0) {
+                            throw new TimeoutException("Deadline exceeded");
+                        }
+                        TimeUnit.NANOSECONDS.sleep(delay);
+                    }
+                    continue;
                 }
+                registerSuccess(endpoint, start);
+                return result;
             }
 
-        } else {
-            result.completeExceptionally(new LoadBalancerException("All backends suspended"));
+        } finally {
+            if (permit) {
+                releasePermit();
+            }
         }
     }
 
-    private int doRetry(Object caller) {
-        if(retryCounters.containsKey(caller)) {
-            return retryCounters.get(caller).decrementAndGet();
+    // Take a queue slot and park until the drainer sees capacity, the caller has to try for a permit again
+    private void awaitCapacity(Criticality criticality) throws LoadBalancerException, InterruptedException {
+        if (!reserveQueueSlot(criticality)) {
+            throw rejected(maxQueueSize > 0 ? "Queue full" : "Concurrency limit reached");
+        }
+
+        BlockingWaiter waiter = new BlockingWaiter();
+        queues.get(criticality.ordinal()).add(waiter);
+        // Capacity might have been freed while we were queueing
+        drainQueue();
+        long until = time.nanoTime() + queueTimeout;
+        boolean interrupted = false;
+        while (!waiter.resumed) {
+            long remaining = queueTimeout > 0 ? until - time.nanoTime() : Long.MAX_VALUE;
+            if (interrupted || remaining <= 0) {
+                // Whoever claims the waiter first owns the queue slot, if the drainer won it unparks us shortly
+                if (waiter.claim()) {
+                    queueSize.decrementAndGet();
+                    queues.get(criticality.ordinal()).remove(waiter);
+                    if (interrupted) {
+                        throw new InterruptedException();
+                    }
+                    throw rejected("Queue timeout");
+                }
+                LockSupport.park(this);
 
-        } else {
-            retryCounters.put(caller, new AtomicInteger(this.retries));
-            return this.retries;
+            } else if (queueTimeout > 0) {
+                LockSupport.parkNanos(this, remaining);
+
+            } else {
+                LockSupport.park(this);
+            }
+            interrupted |= Thread.interrupted();
         }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean reserveQueueSlot(Criticality criticality) {
+        long maxSize = criticality.scale(maxQueueSize);
+        int size;
+        do {
+            size = queueSize.get();
+            if (size >= maxSize) {
+                return false;
+            }
+        } while (!queueSize.compareAndSet(size, size + 1));
+        return true;
+    }
+
+    private static Criticality orDefault(Criticality criticality) {
+        return criticality != null ? criticality : Criticality.DEFAULT;
+    }
+
+    private static List<ConcurrentLinkedQueue<Waiter>> newQueues() {
+        List<ConcurrentLinkedQueue<Waiter>> queues = new ArrayList<>();
+        for (int i = 0; i < CRITICALITIES.length; i++) {
+            queues.add(new ConcurrentLinkedQueue<>());
+        }
+        return queues;
+    }
+
+    // Calls that need more of the pool to be unsuspended than there is
+    private boolean isShed(Criticality criticality) {
+        return criticality.minimumAvailable > 0 && getAvailability() < criticality.minimumAvailable;
+    }
+
+    // Share of the routed endpoints that are not suspended, cached for a short while as computing it reads them all
+    private double getAvailability() {
+        long now = time.nanoTime();
+        long computed = availabilityTime.get();
+        if ((computed == 0 || now - computed >= AVAILABILITY_REFRESH) && availabilityTime.compareAndSet(computed, now)) {
+            EndpointState[] endpoints = group.routed.endpoints;
+            long millis = time.currentTimeMillis();
+            int unsuspended = 0;
+            for (EndpointState endpoint : endpoints) {
+                if (!endpoint.isSuspended(millis)) {
+                    unsuspended++;
+                }
+            }
+            availability.set(Double.doubleToRawLongBits(endpoints.length > 0 ? (double) unsuspended / endpoints.length : 0));
+        }
+        return Double.longBitsToDouble(availability.get());
     }
 
-    private int getNextIndex(Object caller) {
-        long now = System.currentTimeMillis();
+    private LoadBalancerException rejected(String message) {
+        LoadBalancerException exception = new LoadBalancerException(message);
+        if (listener != null) {
+            listener.onRejected(exception);
+        }
+        return exception;
+    }
+
+    private void releasePermit() {
+        inFlight.decrementAndGet();
+        drainQueue();
+    }
+
+    // A call waiting in the queue. The drainer claims a waiter before resuming it and a timed out or cancelled waiter
+    // claims itself, so the queue slot is given back exactly once.
+    private interface Waiter {
+        boolean claim();
+
+        void resume();
+    }
+
+    // Cumulative share of the traffic each tier takes, for the tiers of the group it was computed from
+    private static final class TierShares {
+        private final EndpointGroup[] tiers;
+        private final double[] shares;
+
+        TierShares(EndpointGroup[] tiers, double[] shares) {
+            this.tiers = tiers;
+            this.shares = shares;
+        }
+    }
+
+    // A blocking call parked on its own thread
+    private static final class BlockingWaiter implements Waiter {
+        private final Thread thread = Thread.currentThread();
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile boolean resumed = false;
+
+        @Override
+        public boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        @Override
+        public void resume() {
+            resumed = true;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // The caller decides the value type for a key, the same way they would with the cache directly
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> dispatch(Object key, Criticality criticality, DeadlineFunction<T> deadlineFunction, BiFunction<Integer, Integer, CompletableFuture<T>> biFunction, Function<Integer, CompletableFuture<T>> function, Supplier<CompletableFuture<T>> supplier) {
+        if (key == null) {
+            Invocation<T> invocation = new Invocation<>(null, criticality, deadlineFunction, biFunction, function, supplier);
+            invocation.start();
+            return invocation;
+        }
+
+        CompletableFutureCache<Object, T> cache = (CompletableFutureCache<Object, T>) this.cache;
+        if (cache != null) {
+            T cached = cache.get(key, null);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+
+        Invocation<T> invocation = new Invocation<>(key, criticality, deadlineFunction, biFunction, function, supplier);
+        if (coalescing) {
+            // Join the call in flight for the key, every caller including the one that started it gets its own
+            // dependent future so cancelling one does not cancel the shared call
+            CompletableFuture<T> inFlight = (CompletableFuture<T>) coalescedCalls.get(key);
+            if (inFlight == null) {
+                inFlight = (CompletableFuture<T>) coalescedCalls.putIfAbsent(key, invocation);
+            }
+            if (inFlight != null) {
+                return inFlight.thenApply(Function.identity());
+            }
+            invocation.whenComplete((value, ex) -> coalescedCalls.remove(key, invocation));
+        }
+
+        invocation.start();
+        // The shared call fills the cache, so the value is kept even if the caller that started it cancelled
+        if (cache != null) {
+            cache.wrap(key, invocation);
+        }
+        return coalescing ? invocation.thenApply(Function.identity()) : invocation;
+    }
+
+    // The retry state of a single call, it is also the future returned to the caller so the success path
+    // does not allocate anything else
+    private final class Invocation<T> extends CompletableFuture<T> implements BiConsumer<T, Throwable>, Waiter {
+        private final Object key;
+        private final Criticality criticality;
+        private final DeadlineFunction<T> deadlineFunction;
+        private final BiFunction<Integer, Integer, CompletableFuture<T>> biFunction;
+        private final Function<Integer, CompletableFuture<T>> function;
+        private final Supplier<CompletableFuture<T>> supplier;
+        private int attempt = 0;
+        private EndpointState endpoint;
+        private long start;
+        private long deadline;
+
+        // Hedging state, only used when a hedge has been scheduled and guarded by this
+        private HashedWheelTimer.Timeout hedgeTimeout;
+        private CompletableFuture<T> primary;
+        private CompletableFuture<T> hedge;
+        private int outstanding;
+
+        // Endpoints that failed an attempt of this call, retries and hedges go elsewhere when they can
+        private BitSet failed;
+
+        // Queueing state, permit is set while the call counts towards the concurrency limit and queued while it holds
+        // a queue slot, queued is guarded by this
+        private boolean permit;
+        private volatile boolean queued;
+        private HashedWheelTimer.Timeout queueTimer;
+
+        Invocation(Object key, Criticality criticality, DeadlineFunction<T> deadlineFunction, BiFunction<Integer, Integer, CompletableFuture<T>> biFunction, Function<Integer, CompletableFuture<T>> function, Supplier<CompletableFuture<T>> supplier) {
+            this.key = key;
+            this.criticality = criticality;
+            this.deadlineFunction = deadlineFunction;
+            this.biFunction = biFunction;
+            this.function = function;
+            this.supplier = supplier;
+        }
+
+        void start() {
+            if (isShed(criticality)) {
+                reject("Load shed");
+                return;
+            }
+            if (hedgeBudget != null) {
+                hedgeBudget.deposit();
+            }
+            if (callDeadline > 0) {
+                deadline = time.nanoTime() + callDeadline;
+            }
+            if (concurrencyLimit != null) {
+                if (!acquirePermit(criticality)) {
+                    enqueue();
+                    return;
+                }
+                permit = true;
+            }
+            dispatch();
+        }
+
+        // Loop instead of recursing so futures that complete synchronously don't grow the stack
+        void dispatch() {
+            while (true) {
+                if (callDeadline > 0 && time.nanoTime() - deadline >= 0) {
+                    completeExceptionally(new TimeoutException("Deadline exceeded"));
+                    return;
+                }
+
+                endpoint = getNextEndpoint(key, failed);
+                if (endpoint == null) {
+                    if (endpointLimit > 0 && hasUnsuspendedEndpoint()) {
+                        // Endpoints are at their limits, wait for one of them to free up
+                        releasePermit();
+                        enqueue();
+                        return;
+                    }
+                    reject("All backends suspended");
+                    return;
+                }
+
+                start = time.nanoTime();
+                long timeout = getTimeout(start);
+                startAttempt(endpoint);
+                CompletableFuture<T> future;
+                boolean done;
+                try {
+                    future = call(endpoint.index, retries - attempt, timeout > 0 ? start + timeout : Long.MAX_VALUE);
+                    done = future.isDone();
 
-        if(this.policy == LoadBalancerPolicy.ROUND_ROBIN) {
-            // Try all endpoints if some are suspended
-            int count = endpointCount;
-            int[] tried = new int[endpointCount];
-            while (count > 0) {
-                // Increment index and convert negative values to positive if need be
-                int index = indexGenerator.getAndIncrement() % endpointCount;
-                if (index < 0) {
-                    index += endpointCount;
+                } catch (Exception e) {
+                    attemptFailed(endpoint, start);
+                    if (retryAfter(e)) {
+                        continue;
+                    }
+                    return;
                 }
 
-                // Don't retry same index
-                if (tried[index] == 0) {
-                    // Return index if endpoint is not suspended
-                    if (suspensionTimes.get(index) < now) {
-                        return index;
+                if (!done) {
+                    if (timeout > 0) {
+                        future = withTimeout(future, timeout);
                     }
+                    if (attempt == 0 && hedgePercentile > 0) {
+                        scheduleHedge(future);
+                    }
+                    // Continue in accept when the future completes
+                    future.whenComplete(this);
+                    return;
+                }
+
+                if (!future.isCompletedExceptionally()) {
+                    registerSuccess(endpoint, start);
+                    complete(future.join());
+                    return;
+                }
+
+                attemptFailed(endpoint, start);
+                if (!retryAfter(exceptionOf(future))) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void accept(T value, Throwable ex) {
+            if (hedgeTimeout != null) {
+                attemptCompleted(endpoint, start, value, ex, true);
+
+            } else if (ex == null) {
+                registerSuccess(endpoint, start);
+                complete(value);
+
+            } else {
+                attemptFailed(endpoint, start);
+                if (retryAfter(ex)) {
+                    dispatch();
+                }
+            }
+        }
+
+        @Override
+        public boolean complete(T value) {
+            if (super.complete(value)) {
+                leaveQueue();
+                releasePermit();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean completeExceptionally(Throwable ex) {
+            if (super.completeExceptionally(ex)) {
+                leaveQueue();
+                releasePermit();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (super.cancel(mayInterruptIfRunning)) {
+                leaveQueue();
+                releasePermit();
+                return true;
+            }
+            return false;
+        }
+
+        private void reject(String message) {
+            LoadBalancerException exception = new LoadBalancerException(message);
+            if (completeExceptionally(exception) && listener != null) {
+                listener.onRejected(exception);
+            }
+        }
+
+        private void releasePermit() {
+            if (permit) {
+                permit = false;
+                LoadBalancer.this.releasePermit();
+            }
+        }
+
+        private void enqueue() {
+            if (!reserveQueueSlot(criticality)) {
+                reject(maxQueueSize > 0 ? "Queue full" : "Concurrency limit reached");
+                return;
+            }
+
+            // Nothing can claim the call before it is in the queue with its timer set
+            synchronized (this) {
+                queued = true;
+                if (queueTimeout > 0) {
+                    queueTimer = timer.schedule(() -> execute(() -> {
+                        // Gone from the queue before the caller sees the rejection, unless the drainer got it first
+                        if (leaveQueue()) {
+                            reject("Queue timeout");
+                        }
+                    }), queueTimeout, TimeUnit.NANOSECONDS);
+                }
+                queues.get(criticality.ordinal()).add(this);
+            }
+            // Capacity might have been freed while we were queueing
+            drainQueue();
+        }
+
+        // Whoever claims the call first, the drainer or whatever completes it while queued, owns the queue slot
+        @Override
+        public boolean claim() {
+            synchronized (this) {
+                if (!queued) {
+                    return false;
+                }
+                queued = false;
+            }
+            if (queueTimer != null) {
+                queueTimer.cancel();
+            }
+            return true;
+        }
+
+        // Calls that time out or are cancelled while queued are removed right away, so they are not held until the
+        // drainer gets to them
+        private boolean leaveQueue() {
+            if (queued && claim()) {
+                queueSize.decrementAndGet();
+                queues.get(criticality.ordinal()).remove(this);
+                return true;
+            }
+            return false;
+        }
+
+        // Called by the queue drainer once there is capacity again
+        @Override
+        public void resume() {
+            queueTimer = null;
+            if (isDone()) {
+                // Cancelled by the caller while queued
+                return;
+            }
+            if (concurrencyLimit != null) {
+                if (!acquirePermit(criticality)) {
+                    enqueue();
+                    return;
+                }
+                permit = true;
+            }
+            dispatch();
+        }
+
+        // Time left for an attempt started now, limited by both the attempt timeout and the call deadline, 0 for none
+        private long getTimeout(long now) {
+            long timeout = attemptTimeout;
+            if (callDeadline > 0) {
+                long remaining = Math.max(deadline - now, 1);
+                timeout = timeout > 0 ? Math.min(timeout, remaining) : remaining;
+            }
+            return timeout;
+        }
 
-                    tried[index] = 1;
-                    count--;
+        // Timed out attempts fail like any other attempt, so they are retried and count towards suspension. The future
+        // the function returned might be shared, so the timeout fails a future of our own that mirrors it instead
+        private CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeout) {
+            CompletableFuture<T> attempt = new CompletableFuture<>();
+            HashedWheelTimer.Timeout attemptTimeout = timer.schedule(() -> execute(() -> attempt.completeExceptionally(new TimeoutException("Attempt timed out"))),
+                    timeout, TimeUnit.NANOSECONDS);
+            future.whenComplete((value, ex) -> {
+                attemptTimeout.cancel();
+                if (ex == null) {
+                    attempt.complete(value);
+
+                } else {
+                    attempt.completeExceptionally(ex);
                 }
+            });
+            // Cancelling the attempt, e.g. when its hedge wins, is still passed on to the function
+            attempt.whenComplete((value, ex) -> {
+                if (attempt.isCancelled()) {
+                    future.cancel(true);
+                }
+            });
+            return attempt;
+        }
+
+        // Send a second attempt to another endpoint if the first one is slower than the configured percentile
+        private void scheduleHedge(CompletableFuture<T> future) {
+            long delay = endpoint.getHedgeDelay(hedgePercentile, HEDGE_MIN_SAMPLES, time.nanoTime());
+            if (delay < 0) {
+                return;
+            }
+            synchronized (this) {
+                primary = future;
+                outstanding = 1;
+                hedgeTimeout = timer.schedule(() -> execute(this::hedge), delay, TimeUnit.NANOSECONDS);
             }
+        }
+
+        private void hedge() {
+            EndpointState picked;
+            synchronized (this) {
+                // The first attempt has already completed
+                if (outstanding != 1 || isDone()) {
+                    return;
+                }
+                BitSet excluded = new BitSet();
+                if (failed != null) {
+                    excluded.or(failed);
+                }
+                excluded.set(endpoint.index);
+                picked = getNextEndpoint(key, excluded);
+                if (picked == null || picked == endpoint || !hedgeBudget.withdraw(1 - criticality.share)) {
+                    return;
+                }
+                outstanding++;
+            }
+
+            final EndpointState hedgeEndpoint = picked;
+            long hedgeStart = time.nanoTime();
+            long timeout = getTimeout(hedgeStart);
+            startAttempt(hedgeEndpoint);
+            CompletableFuture<T> future;
+            try {
+                future = Objects.requireNonNull(call(hedgeEndpoint.index, retries - attempt, timeout > 0 ? hedgeStart + timeout : Long.MAX_VALUE));
+                if (timeout > 0) {
+                    future = withTimeout(future, timeout);
+                }
+
+            } catch (Exception e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            synchronized (this) {
+                hedge = future;
+            }
+            if (isDone()) {
+                future.cancel(true);
+            }
+            future.whenComplete((value, ex) -> attemptCompleted(hedgeEndpoint, hedgeStart, value, ex, false));
+        }
+
+        // The first successful attempt wins and cancels the other, the call is only retried when both have failed
+        private void attemptCompleted(EndpointState attemptEndpoint, long attemptStart, T value, Throwable ex, boolean isPrimary) {
+            boolean last;
+            CompletableFuture<T> other;
+            synchronized (this) {
+                if (isPrimary) {
+                    hedgeTimeout.cancel();
+                }
+                last = --outstanding == 0;
+                other = isPrimary ? hedge : primary;
+            }
+
+            if (isDone()) {
+                // Lost the race, the result is no longer needed
+                cancelAttempt(attemptEndpoint);
+
+            } else if (ex == null) {
+                registerSuccess(attemptEndpoint, attemptStart);
+                if (complete(value) && !last && other != null) {
+                    other.cancel(true);
+                }
+
+            } else {
+                attemptFailed(attemptEndpoint, attemptStart);
+                if (last) {
+                    synchronized (this) {
+                        hedgeTimeout = null;
+                    }
+                    if (retryAfter(ex)) {
+                        dispatch();
+                    }
+                }
+            }
+        }
+
+        private void attemptFailed(EndpointState attemptEndpoint, long attemptStart) {
+            registerFailure(attemptEndpoint, attemptStart);
+            if (retries > 0) {
+                synchronized (this) {
+                    if (failed == null) {
+                        failed = new BitSet();
+                    }
+                    failed.set(attemptEndpoint.index);
+                }
+            }
+        }
+
+        private CompletableFuture<T> call(int index, int retryCount, long attemptDeadline) {
+            if (deadlineFunction != null) {
+                return deadlineFunction.apply(index, retryCount, attemptDeadline);
+
+            } else if (biFunction != null) {
+                return biFunction.apply(index, retryCount);
+
+            } else if (function != null) {
+                return function.apply(index);
+            }
+            return supplier.get();
+        }
+
+        // Return true if the call should be retried now, false if it failed or the retry has been scheduled
+        private boolean retryAfter(Throwable ex) {
+            if (isDone()) {
+                // Cancelled by the caller
+                return false;
+            }
+            if (attempt >= retries || (retryBudget != null && !retryBudget.withdraw(1 - criticality.share))) {
+                completeExceptionally(ex);
+                return false;
+            }
+            attempt++;
+            if (listener != null) {
+                listener.onRetry(attempt, ex);
+            }
+            if (retryBackoff == 0) {
+                return true;
+            }
+
+            long delay = getRetryBackoff(attempt);
+            if (callDeadline > 0 && time.nanoTime() + delay - deadline >= 0) {
+                completeExceptionally(new TimeoutException("Deadline exceeded"));
+                return false;
+            }
+            timer.schedule(() -> execute(() -> {
+                if (!isDone()) {
+                    dispatch();
+                }
+            }), delay, TimeUnit.NANOSECONDS);
+            return false;
+        }
+    }
+
+    // A task the executor rejects runs on the calling thread rather than getting lost
+    void execute(Runnable task) {
+        try {
+            executor.execute(task);
+
+        } catch (RejectedExecutionException ex) {
+            task.run();
+        }
+    }
+
+    HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    private Random random() {
+        return random != null ? random : ThreadLocalRandom.current();
+    }
+
+    // Exponential backoff with full jitter, spreads the retries of calls that failed together
+    private long getRetryBackoff(int attempt) {
+        long cap = retryBackoff;
+        for (int i = 1; i < attempt && cap < maxRetryBackoff; i++) {
+            cap <<= 1;
+        }
+        return (long) (random().nextDouble() * (Math.min(cap, maxRetryBackoff) + 1));
+    }
+
+    private boolean acquirePermit(Criticality criticality) {
+        long limit = getLimit(criticality);
+        long current;
+        do {
+            current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    // Less critical calls only get their share of the limit and critical calls can go above it, so there is always
+    // room left for the critical calls
+    private long getLimit(Criticality criticality) {
+        return Math.max(1, criticality.scale(concurrencyLimit.getLimit()));
+    }
+
+    private boolean hasCapacity(Criticality criticality) {
+        if (concurrencyLimit != null && inFlight.get() >= getLimit(criticality)) {
+            return false;
+        }
+        if (endpointLimit > 0) {
+            long now = time.currentTimeMillis();
+            for (EndpointState endpoint : group.routed.endpoints) {
+                if (endpoint.isAvailable(now)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private boolean hasUnsuspendedEndpoint() {
+        long now = time.currentTimeMillis();
+        for (EndpointState endpoint : group.routed.endpoints) {
+            if (!endpoint.isSuspended(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Waiters held by the queues, only used by the tests
+    int getQueueLength() {
+        int length = 0;
+        for (ConcurrentLinkedQueue<Waiter> queue : queues) {
+            length += queue.size();
+        }
+        return length;
+    }
+
+    // Only one thread drains at a time, the others leave it to the drainer and it checks again once done
+    private void drainQueue() {
+        while (queueSize.get() > 0 && hasResumableWaiter() && draining.compareAndSet(false, true)) {
+            try {
+                Waiter next;
+                while ((next = pollQueue()) != null) {
+                    if (!next.claim()) {
+                        // Timed out, the slot has already been given back
+                        continue;
+                    }
+                    queueSize.decrementAndGet();
+                    next.resume();
+                }
+
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    // The most critical waiter there is capacity for, less critical waiters are left queued while more critical ones wait
+    private Waiter pollQueue() {
+        for (Criticality criticality : CRITICALITIES) {
+            if (!hasCapacity(criticality)) {
+                return null;
+            }
+            Waiter next = queues.get(criticality.ordinal()).poll();
+            if (next != null) {
+                return next;
+            }
+        }
+        return null;
+    }
+
+    private boolean hasResumableWaiter() {
+        for (Criticality criticality : CRITICALITIES) {
+            if (!hasCapacity(criticality)) {
+                return false;
+            }
+            if (!queues.get(criticality.ordinal()).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Throwable exceptionOf(CompletableFuture<?> future) {
+        try {
+            future.join();
+            return null;
+
+        } catch (CompletionException ex) {
+            return ex.getCause();
+
+        } catch (CancellationException ex) {
+            return ex;
+        }
+    }
+
+    // Endpoints in excluded are only picked when nothing else is available, returns null if no endpoint is available
+    private EndpointState getNextEndpoint(Object key, BitSet excluded) {
+        long now = time.currentTimeMillis();
+        EndpointGroup group = this.group.routed;
+        if (group.endpoints.length == 0) {
+            return null;
+        }
+        if (group.tiers != null) {
+            int tier = getTier(group.tiers, now);
+            EndpointState endpoint = getNextTieredEndpoint(group.tiers, tier, key, excluded, now);
+            if (endpoint == null && excluded != null) {
+                endpoint = getNextTieredEndpoint(group.tiers, tier, key, null, now);
+            }
+            return endpoint;
+        }
+        int position = getNextPosition(group, key, excluded, now);
+        if (position < 0 && excluded != null) {
+            position = getNextPosition(group, key, null, now);
+        }
+        return position >= 0 ? group.endpoints[position] : null;
+    }
+
+    // Pick a tier at random, each tier takes the share of the traffic its available endpoints can cover and leaves
+    // the rest to the following tiers
+    private int getTier(EndpointGroup[] tiers, long now) {
+        double[] shares = getTierShares(tiers, now);
+        double random = random().nextDouble();
+        for (int i = 0; i < shares.length; i++) {
+            if (random < shares[i]) {
+                return i;
+            }
+        }
+        // Not enough capacity anywhere, keep the rest in the preferred tier
+        return 0;
+    }
+
+    // Cached for a short while like the availability, so picking a tier does not read the endpoints on every call
+    private double[] getTierShares(EndpointGroup[] tiers, long now) {
+        TierShares cached = tierShares;
+        long nanos = time.nanoTime();
+        long computed = tierSharesTime.get();
+        if (cached == null || cached.tiers != tiers
+                || ((computed == 0 || nanos - computed >= AVAILABILITY_REFRESH) && tierSharesTime.compareAndSet(computed, nanos))) {
+            double[] shares = new double[tiers.length];
+            double total = 0;
+            for (int i = 0; i < tiers.length; i++) {
+                total += Math.min(1 - total, getAvailableFraction(tiers[i], now) / spilloverThreshold);
+                shares[i] = total;
+            }
+            cached = new TierShares(tiers, shares);
+            tierShares = cached;
+        }
+        return cached.shares;
+    }
+
+    // Stops counting once the tier is above the spillover threshold, so a healthy preferred tier is the only one read
+    private double getAvailableFraction(EndpointGroup tier, long now) {
+        EndpointState[] endpoints = tier.endpoints;
+        int needed = (int) Math.ceil(endpoints.length * spilloverThreshold);
+        int available = 0;
+        for (int i = 0; i < endpoints.length && available < needed; i++) {
+            if (endpoints[i].isAvailable(now)) {
+                available++;
+            }
+        }
+        return (double) available / endpoints.length;
+    }
+
+    // Try the picked tier first and then the others from the most preferred
+    private EndpointState getNextTieredEndpoint(EndpointGroup[] tiers, int tier, Object key, BitSet excluded, long now) {
+        for (int i = -1; i < tiers.length; i++) {
+            if (i == tier) {
+                continue;
+            }
+            EndpointGroup candidate = tiers[i < 0 ? tier : i];
+            int position = getNextPosition(candidate, key, excluded, now);
+            if (position >= 0) {
+                return candidate.endpoints[position];
+            }
+        }
+        return null;
+    }
+
+    private int getNextPosition(EndpointGroup group, Object key, BitSet excluded, long now) {
+        EndpointState[] endpoints = group.endpoints;
+
+        if(this.policy == LoadBalancerPolicy.ROUND_ROBIN || (this.policy == LoadBalancerPolicy.CONSISTENT_HASH && key == null)) {
+            return getRoundRobinIndex(endpoints, excluded, now);
 
         } else if(this.policy == LoadBalancerPolicy.LATENCY_LAST) {
             int index = -1;
-            for(int i = 0;  i < latencyTimes.length(); i++) {
-                long current = latencyTimes.get(i);
-                long smallest = Long.MAX_VALUE;
-                if(current < smallest && suspensionTimes.get(i) < now) {
+            long smallest = Long.MAX_VALUE;
+            for(int i = 0;  i < endpoints.length; i++) {
+                long current = endpoints[i].latency.get();
+                if(current < smallest && isSelectable(endpoints[i], excluded, now)) {
                     smallest = current;
                     index = i;
                 }
             }
             return index;
+
+        } else if(this.policy == LoadBalancerPolicy.PEAK_EWMA) {
+            return getPeakEwmaIndex(endpoints, excluded, now);
+
+        } else if(this.policy == LoadBalancerPolicy.WEIGHTED_ROUND_ROBIN) {
+            return getWeightedRoundRobinIndex(group, excluded, now);
+
+        } else if(this.policy == LoadBalancerPolicy.LEAST_OUTSTANDING) {
+            return getLeastOutstandingIndex(endpoints, excluded, now);
+
+        } else if(this.policy == LoadBalancerPolicy.POWER_OF_TWO_CHOICES) {
+            return getPowerOfTwoChoicesIndex(endpoints, excluded, now);
+
+        } else if(this.policy == LoadBalancerPolicy.CONSISTENT_HASH) {
+            return getConsistentHashIndex(group, key, excluded, now);
         }
 
         return -1;
     }
 
-    private void registerSuccess(Object caller, int index, long start) {
-        successCounters.incrementAndGet(index);
-        retryCounters.remove(caller);
+    private static boolean isSelectable(EndpointState endpoint, BitSet excluded, long now) {
+        return endpoint.isAvailable(now) && (excluded == null || !excluded.get(endpoint.index));
+    }
+
+    private int getRoundRobinIndex(EndpointState[] endpoints, BitSet excluded, long now) {
+        // Walk from the next index and try all endpoints if some are suspended
+        int next = indexGenerator.getAndIncrement();
+        for (int i = 0; i < endpoints.length; i++) {
+            // Convert negative values to positive if need be
+            int index = Math.floorMod(next + i, endpoints.length);
+            if (isSelectable(endpoints[index], excluded, now)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private int getWeightedRoundRobinIndex(EndpointGroup group, BitSet excluded, long now) {
+        // Walk the schedule from the next position if some endpoints are suspended
+        EndpointState[] endpoints = group.endpoints;
+        WeightedSchedule schedule = group.weightedSchedule;
+        int next = indexGenerator.getAndIncrement();
+        for (int i = 0; i < schedule.length(); i++) {
+            int index = schedule.get(next + i);
+            if (isSelectable(endpoints[index], excluded, now)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private int getConsistentHashIndex(EndpointGroup group, Object key, BitSet excluded, long now) {
+        // Suspended endpoints and retries move on to the following slots, which belong to random other endpoints,
+        // so only the keys of the suspended endpoint are remapped
+        EndpointState[] endpoints = group.endpoints;
+        ConsistentHashTable table = group.consistentHashTable;
+        int hash = ConsistentHashTable.hash(key);
+        int probes = (int) Math.min(table.size(), (long) endpoints.length * CONSISTENT_HASH_PROBES);
+        for (int probe = 0; probe < probes; probe++) {
+            int index = table.get(hash, probe);
+            if (isSelectable(endpoints[index], excluded, now)) {
+                return index;
+            }
+        }
+        // Most endpoints are unavailable, walk them once instead of the whole table
+        int start = table.get(hash, 0);
+        for (int i = 1; i < endpoints.length; i++) {
+            int index = (start + i) % endpoints.length;
+            if (isSelectable(endpoints[index], excluded, now)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private int getLeastOutstandingIndex(EndpointState[] endpoints, BitSet excluded, long now) {
+        // Start from a rotating offset so ties are spread over the endpoints
+        int next = indexGenerator.getAndIncrement();
+        int index = -1;
+        long lowest = Long.MAX_VALUE;
+        for (int i = 0; i < endpoints.length; i++) {
+            int position = Math.floorMod(next + i, endpoints.length);
+            long inFlight = endpoints[position].inFlight.get();
+            if (inFlight < lowest && isSelectable(endpoints[position], excluded, now)) {
+                lowest = inFlight;
+                index = position;
+            }
+        }
+        return index;
+    }
+
+    private int getPowerOfTwoChoicesIndex(EndpointState[] endpoints, BitSet excluded, long now) {
+        if (endpoints.length == 1) {
+            return isSelectable(endpoints[0], excluded, now) ? 0 : -1;
+        }
+
+        // Pick two distinct endpoints at random and use the one with the fewest calls in flight
+        Random random = random();
+        int first = random.nextInt(endpoints.length);
+        int second = random.nextInt(endpoints.length - 1);
+        if (second >= first) {
+            second++;
+        }
+        boolean firstAvailable = isSelectable(endpoints[first], excluded, now);
+        boolean secondAvailable = isSelectable(endpoints[second], excluded, now);
+        if (firstAvailable && secondAvailable) {
+            return endpoints[first].inFlight.get() <= endpoints[second].inFlight.get() ? first : second;
+
+        } else if (firstAvailable) {
+            return first;
+
+        } else if (secondAvailable) {
+            return second;
+        }
+
+        // Neither was available so fall back to walking all endpoints
+        return getRoundRobinIndex(endpoints, excluded, now);
+    }
+
+    private int getPeakEwmaIndex(EndpointState[] endpoints, BitSet excluded, long now) {
+        long nanoNow = time.nanoTime();
+
+        // Penalized endpoints decay towards the mean of the healthy endpoints so they get retried eventually
+        double sum = 0;
+        int count = 0;
+        for (EndpointState endpoint : endpoints) {
+            if (endpoint.isAvailable(now)) {
+                sum += endpoint.getEwma();
+                count++;
+            }
+        }
+        if (count == 0) {
+            return -1;
+        }
+        double mean = sum / count;
+
+        // Start from a rotating offset so ties are spread over the endpoints
+        int next = indexGenerator.getAndIncrement();
+        int index = -1;
+        double lowest = Double.MAX_VALUE;
+        for (int i = 0; i < endpoints.length; i++) {
+            int position = Math.floorMod(next + i, endpoints.length);
+            EndpointState endpoint = endpoints[position];
+            if (!isSelectable(endpoint, excluded, now)) {
+                continue;
+            }
+            // Add a nanosecond so calls in flight still count when nothing has been measured yet
+            double weight = Math.exp(-Math.max(nanoNow - endpoint.ewmaTime.get(), 0) / (double) ewmaDecayTime);
+            double cost = (mean + (endpoint.getEwma() - mean) * weight + 1) * (endpoint.inFlight.get() + 1);
+            if (cost < lowest) {
+                lowest = cost;
+                index = position;
+            }
+        }
+        return index;
+    }
+
+    private void startAttempt(EndpointState endpoint) {
+        endpoint.inFlight.incrementAndGet();
+        if (endpoint.breaker != null) {
+            endpoint.breaker.onDispatch(time.currentTimeMillis());
+        }
+    }
+
+    // The attempt's result is not used, so it counts neither as a success nor as a failure
+    private void cancelAttempt(EndpointState endpoint) {
+        endpoint.release();
+        if (endpoint.breaker != null) {
+            endpoint.breaker.onCancelled();
+        }
+    }
+
+    private void registerSuccess(EndpointState endpoint, long start) {
+        long now = time.nanoTime();
+        endpoint.release();
+        endpoint.successes.increment();
+        endpoint.recordLatency(now - start, false, now);
+        updateLimits(endpoint, now - start, false, now);
+        if (retryBudget != null) {
+            retryBudget.deposit();
+        }
+        if (healthChecker != null) {
+            endpoint.lastSuccess.lazySet(now);
+        }
+        if (outlierDetector != null) {
+            endpoint.latencySum.add(now - start);
+        }
+        if (endpoint.breaker != null && endpoint.breaker.onSuccess(time.currentTimeMillis()) && listener != null) {
+            listener.onRecovered(endpoint.index);
+        }
         if(policy == LoadBalancerPolicy.LATENCY_LAST) {
-            latencyTimes.set(index, System.currentTimeMillis() - start);
+            endpoint.latency.set(now - start);
+
+        } else if(policy == LoadBalancerPolicy.PEAK_EWMA) {
+            endpoint.updateEwma(now - start, now, ewmaDecayTime);
         }
     }
 
-    private void registerFailure(Object caller, int index, boolean last) {
-        failureCounters.incrementAndGet(index);
+    private void registerFailure(EndpointState endpoint, long start) {
+        endpoint.release();
+        endpoint.failures.increment();
+        long nanoNow = time.nanoTime();
+        endpoint.recordLatency(nanoNow - start, true, nanoNow);
+        updateLimits(endpoint, nanoNow - start, true, nanoNow);
 
         if(policy == LoadBalancerPolicy.LATENCY_LAST) {
             // Make sure we don't pick a backend with a failed request next time
-            latencyTimes.set(index, Long.MAX_VALUE - 1);
+            endpoint.latency.set(Long.MAX_VALUE - 1);
+
+        } else if(policy == LoadBalancerPolicy.PEAK_EWMA) {
+            endpoint.updateEwma(Math.max(nanoNow - start, endpoint.getEwma()) * EWMA_FAILURE_PENALTY, nanoNow, ewmaDecayTime);
         }
 
-        if(suspensionTime > 0) {
-            // Try to save the failure time in the failureTimes array
-            long now = System.currentTimeMillis();
-            long oldestFailureTime = now - failureRateTimeUnit.toMillis(failureRateTime);
-            int i;
-            for (i = 0; i < failureTimes[index].length(); i++) {
-                if (failureTimes[index].get(i) < oldestFailureTime) {
-                    failureTimes[index].set(i, now);
-                    break;
-                }
-            }
-            // If all failureTimes slots are used then we can suspend the endpoint
-            if (failureTimes[index].length() == 0 || i == failureTimes[index].length() - 1) {
-                suspensionTimes.set(index, now + suspensionTimeUnit.toMillis(suspensionTime));
+        if(endpoint.breaker != null && endpoint.breaker.onFailure(time.currentTimeMillis()) && listener != null) {
+            listener.onSuspended(endpoint.index);
+        }
+    }
+
+    private void updateLimits(EndpointState endpoint, long latency, boolean failed, long now) {
+        if (concurrencyLimit != null) {
+            concurrencyLimit.onSample(latency, failed, inFlight.get(), now);
+        }
+        if (endpoint.limit != null) {
+            endpoint.limit.onSample(latency, failed, endpoint.inFlight.get(), now);
+            // The endpoint has room for another call
+            if (queueSize.get() > 0) {
+                drainQueue();
             }
         }
+    }
 
-        // Remove the caller
-        if(last) {
-            retryCounters.remove(caller);
+    /**
+     * Change the weight of an endpoint used by the WEIGHTED_ROUND_ROBIN policy, a weight of 0 takes it out of rotation
+     */
+    public synchronized void setWeight(int index, int weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weights can not be negative");
         }
+        getEndpoint(index).weight = weight;
+        updateGroup(group.endpoints);
     }
 
-    private void checkMonitors() {
-        for (int i = 0; i < endpointCount; i++) {
-            final int index = i;
-            try {
-                monitorFunction.apply(index).whenComplete((result, ex) -> {
-                    if (result && ex == null) {
-                        // Unset suspension time when we hit the healthy threshold
-                        if(monitorHealthyCounters.incrementAndGet(index) >= monitorHealthyThreshold) {
-                            suspensionTimes.set(index, 0);
-                            monitorHealthyCounters.set(index, 0);
-                        }
-                        // Reset unhealthy counter
-                        if(monitorUnhealthyCounters.get(index) > 0) {
-                            monitorUnhealthyCounters.set(index, 0);
-                        }
+    public int getWeight(int index) {
+        return getEndpoint(index).weight;
+    }
 
-                    } else {
-                        // Set suspension time when we hit the unhealthy threshold
-                        if(monitorUnhealthyCounters.incrementAndGet(index) >= monitorUnhealthyThreshold) {
-                            suspensionTimes.set(index, Long.MAX_VALUE);
-                            monitorUnhealthyCounters.set(index, 0);
-                        }
-                        // Reset healthy counter
-                        if(monitorHealthyCounters.get(index) > 0) {
-                            monitorHealthyCounters.set(index, 0);
-                        }
-                    }
-                });
+    /**
+     * Move an endpoint to another priority tier, lower priorities are preferred
+     */
+    public synchronized void setPriority(int index, int priority) {
+        getEndpoint(index).priority = priority;
+        updateGroup(group.endpoints);
+    }
 
-            } catch (Exception ex) { // Got exception trying to create the future
-                // Set suspension time when we hit the unhealthy threshold
-                if(monitorUnhealthyCounters.incrementAndGet(index) >= monitorUnhealthyThreshold) {
-                    suspensionTimes.set(index, Long.MAX_VALUE);
-                    monitorUnhealthyCounters.set(index, 0);
-                }
-                // Reset healthy counter
-                if(monitorHealthyCounters.get(index) > 0) {
-                    monitorHealthyCounters.set(index, 0);
-                }
+    public int getPriority(int index) {
+        return getEndpoint(index).priority;
+    }
+
+    /**
+     * Add an endpoint with a weight of 1
+     * @return index of the new endpoint, indexes are never reused
+     */
+    public int addEndpoint() {
+        return addEndpoint(1);
+    }
+
+    public int addEndpoint(int weight) {
+        return addEndpoint(weight, 0);
+    }
+
+    /**
+     * Add an endpoint, it takes calls as soon as this returns
+     * @return index of the new endpoint, indexes are never reused
+     */
+    public synchronized int addEndpoint(int weight, int priority) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weights can not be negative");
+        }
+        EndpointState endpoint = newEndpoint(nextEndpointIndex++);
+        endpoint.weight = weight;
+        endpoint.priority = priority;
+        EndpointState[] endpoints = Arrays.copyOf(group.endpoints, group.endpoints.length + 1);
+        endpoints[endpoints.length - 1] = endpoint;
+        updateGroup(endpoints);
+        return endpoint.index;
+    }
+
+    /**
+     * Remove an endpoint straight away, calls in flight to it complete as usual
+     * @return false if there is no endpoint with the index
+     */
+    public synchronized boolean removeEndpoint(int index) {
+        EndpointState[] current = group.endpoints;
+        int position = group.positionOf(index);
+        if (position < 0) {
+            return false;
+        }
+        EndpointState[] endpoints = new EndpointState[current.length - 1];
+        System.arraycopy(current, 0, endpoints, 0, position);
+        System.arraycopy(current, position + 1, endpoints, position, endpoints.length - position);
+        updateGroup(endpoints);
+        current[position].removed = true;
+        return true;
+    }
+
+    /**
+     * Stop sending new calls to an endpoint and remove it once the calls in flight to it have completed
+     * @return future that completes when the endpoint has been removed
+     */
+    public CompletableFuture<Void> drainEndpoint(int index) {
+        EndpointState endpoint = getEndpoint(index);
+        return endpoint.drain().thenRun(() -> removeEndpoint(index));
+    }
+
+    private EndpointState getEndpoint(int index) {
+        EndpointGroup group = this.group;
+        int position = group.positionOf(index);
+        if (position < 0) {
+            throw new IllegalArgumentException("Unknown endpoint " + index);
+        }
+        return group.endpoints[position];
+    }
+
+    private EndpointState newEndpoint(int index) {
+        EndpointState endpoint = new EndpointState(index, time.nanoTime());
+        if(breakerOpenTime > 0) {
+            endpoint.breaker = new CircuitBreaker(breakerFailureRate, breakerMinimumCalls, breakerMinimumFailures, breakerWindow, breakerOpenTime);
+        }
+        if(endpointLimit > 0) {
+            endpoint.limit = new ConcurrencyLimit(endpointLimit, endpointMinLimit, endpointMaxLimit);
+        }
+        return endpoint;
+    }
+
+    // Rebuilds are rare so they are serialized, selection keeps reading the previous group until it is swapped in
+    private synchronized void updateGroup(EndpointState[] endpoints) {
+        EndpointGroup updated = new EndpointGroup(endpoints, policy == LoadBalancerPolicy.CONSISTENT_HASH, subsetClientId, subsetSize);
+        if (subsetSize > 0) {
+            // Health checks skip the endpoints this client does not route to
+            for (EndpointState endpoint : endpoints) {
+                endpoint.routed = false;
+            }
+            for (EndpointState endpoint : updated.routed.endpoints) {
+                endpoint.routed = true;
+            }
+        }
+        group = updated;
+        if (healthChecker != null) {
+            // Endpoints that joined the subset, or were just added, start their checks
+            for (EndpointState endpoint : updated.routed.endpoints) {
+                healthChecker.start(endpoint);
             }
         }
     }
 
+    /**
+     * @return statistics for all current endpoints ordered by index
+     */
+    public List<EndpointSnapshot> snapshot() {
+        EndpointState[] endpoints = group.endpoints;
+        List<EndpointSnapshot> snapshots = new ArrayList<>(endpoints.length);
+        for (EndpointState endpoint : endpoints) {
+            snapshots.add(endpoint.snapshot(time.nanoTime()));
+        }
+        return snapshots;
+    }
+
+    /**
+     * Stop the health checks and cache refreshes, calls can still be made
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (healthChecker != null) {
+            healthChecker.close();
+        }
+        if (outlierDetector != null) {
+            outlierDetector.close();
+        }
+    }
+
+    // The refresh itself runs on the executor
+    private void scheduleCacheRefresh(long delay) {
+        timer.schedule(() -> {
+            if (closed) {
+                return;
+            }
+            try {
+                execute(cacheRefresh);
+
+            } finally {
+                scheduleCacheRefresh(cacheRefreshTimeUnit.toNanos(cacheRefreshInterval));
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
     public static LoadBalancerBuilder builder() {
         return  new LoadBalancerBuilder();
     }
@@ -247,17 +1554,182 @@ public class LoadBalancer {
             return this;
         }
 
+        /**
+         * Limit retries to percent of the successful calls, with up to maxTokens retries saved up for bursts
+         */
+        public LoadBalancerBuilder setRetryBudget(double percent, int maxTokens) {
+            loadBalancer.retryBudget = new TokenBucket(percent, maxTokens, maxTokens);
+            return this;
+        }
+
+        /**
+         * Wait before each retry, a random time up to the backoff which doubles from initialBackoff for each retry
+         * up to maxBackoff
+         */
+        public LoadBalancerBuilder setRetryBackoff(long initialBackoff, long maxBackoff, TimeUnit timeUnit) {
+            if (initialBackoff <= 0 || maxBackoff < initialBackoff) {
+                throw new IllegalArgumentException("Backoff must satisfy 0 < initialBackoff <= maxBackoff");
+            }
+            loadBalancer.retryBackoff = timeUnit.toNanos(initialBackoff);
+            loadBalancer.maxRetryBackoff = timeUnit.toNanos(maxBackoff);
+            return this;
+        }
+
         public LoadBalancerBuilder setEndpointCount(int count) {
             loadBalancer.endpointCount = count;
             return this;
         }
 
+        /**
+         * Suspend an endpoint when it has failed maxFailures times within failuresTime, after the suspension time a
+         * few probe calls are let through and the endpoint rejoins when they succeed
+         */
         public LoadBalancerBuilder setMaxFailureRate(int maxFailures, long failuresTime, TimeUnit failuresTimeUnit, long suspensionTime, TimeUnit suspensionTimeUnit) {
-            loadBalancer.failureRateMaxFailures = maxFailures;
-            loadBalancer.failureRateTime = failuresTime;
-            loadBalancer.failureRateTimeUnit = failuresTimeUnit;
-            loadBalancer.suspensionTime = suspensionTime;
-            loadBalancer.suspensionTimeUnit = suspensionTimeUnit;
+            loadBalancer.breakerFailureRate = 0;
+            loadBalancer.breakerMinimumCalls = 0;
+            loadBalancer.breakerMinimumFailures = maxFailures;
+            loadBalancer.breakerWindow = failuresTimeUnit.toMillis(failuresTime);
+            loadBalancer.breakerOpenTime = suspensionTimeUnit.toMillis(suspensionTime);
+            return this;
+        }
+
+        /**
+         * Suspend an endpoint when at least failureRatePercent of its calls within the window have failed and it has
+         * had at least minimumCalls calls, after the open time a few probe calls are let through and the endpoint
+         * rejoins when they succeed
+         */
+        public LoadBalancerBuilder setCircuitBreaker(double failureRatePercent, int minimumCalls, long window, TimeUnit windowTimeUnit, long openTime, TimeUnit openTimeUnit) {
+            if (failureRatePercent <= 0 || failureRatePercent > 100) {
+                throw new IllegalArgumentException("Failure rate must be above 0 and at most 100");
+            }
+            loadBalancer.breakerFailureRate = failureRatePercent / 100.0;
+            loadBalancer.breakerMinimumCalls = minimumCalls;
+            loadBalancer.breakerMinimumFailures = 1;
+            loadBalancer.breakerWindow = windowTimeUnit.toMillis(window);
+            loadBalancer.breakerOpenTime = openTimeUnit.toMillis(openTime);
+            return this;
+        }
+
+        public LoadBalancerBuilder setWeights(int... weights) {
+            loadBalancer.weights = weights;
+            return this;
+        }
+
+        /**
+         * Put the endpoints in priority tiers, e.g. 0 for the local zone and 1 for the others. Calls go to the lowest
+         * tier and only spill over to the next one as its endpoints become unavailable.
+         */
+        public LoadBalancerBuilder setPriorities(int... priorities) {
+            loadBalancer.priorities = priorities;
+            return this;
+        }
+
+        /**
+         * @param percent share of the endpoints in a tier that must be available for it to take all of its traffic
+         */
+        public LoadBalancerBuilder setSpilloverThreshold(double percent) {
+            if (percent <= 0 || percent > 100) {
+                throw new IllegalArgumentException("Spillover threshold must be above 0 and at most 100 percent");
+            }
+            loadBalancer.spilloverThreshold = percent / 100;
+            return this;
+        }
+
+        /**
+         * Only route to a subset of the endpoints, for fleets where every client calling every endpoint is too many
+         * connections. Clients with consecutive ids get disjoint subsets so the load stays even across the endpoints.
+         *
+         * @param clientId id of this client, unique among the clients of the same endpoints
+         * @param subsetSize number of endpoints this client routes to
+         */
+        public LoadBalancerBuilder setSubset(int clientId, int subsetSize) {
+            if (clientId < 0 || subsetSize < 1) {
+                throw new IllegalArgumentException("Client id can not be negative and the subset size must be at least 1");
+            }
+            loadBalancer.subsetClientId = clientId;
+            loadBalancer.subsetSize = subsetSize;
+            return this;
+        }
+
+        /**
+         * Fail attempts that take longer than the timeout, they count as failures and are retried
+         */
+        public LoadBalancerBuilder setTimeout(long timeout, TimeUnit timeoutTimeUnit) {
+            loadBalancer.attemptTimeout = timeoutTimeUnit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * Fail calls that have not completed within the deadline, including all their retries
+         */
+        public LoadBalancerBuilder setDeadline(long deadline, TimeUnit deadlineTimeUnit) {
+            loadBalancer.callDeadline = deadlineTimeUnit.toNanos(deadline);
+            return this;
+        }
+
+        /**
+         * Limit the number of calls in flight, the limit adapts between minLimit and maxLimit to the latency and
+         * failures of the calls. Calls above the limit wait in the queue if one has been set, otherwise they fail.
+         */
+        public LoadBalancerBuilder setConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+            loadBalancer.concurrencyLimit = new ConcurrencyLimit(initialLimit, minLimit, maxLimit);
+            return this;
+        }
+
+        /**
+         * Limit the number of calls in flight to each endpoint, see setConcurrencyLimit. Endpoints at their limit
+         * are skipped, calls wait in the queue when all endpoints are at their limit.
+         */
+        public LoadBalancerBuilder setEndpointConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+            ConcurrencyLimit.validate(initialLimit, minLimit, maxLimit);
+            loadBalancer.endpointLimit = initialLimit;
+            loadBalancer.endpointMinLimit = minLimit;
+            loadBalancer.endpointMaxLimit = maxLimit;
+            return this;
+        }
+
+        /**
+         * Queue calls above the concurrency limits, calls fail with a LoadBalancerException when the queue is full
+         * or they have waited longer than the timeout
+         */
+        public LoadBalancerBuilder setQueue(int maxSize, long timeout, TimeUnit timeoutTimeUnit) {
+            loadBalancer.maxQueueSize = maxSize;
+            loadBalancer.queueTimeout = timeoutTimeUnit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * Send a second attempt to another endpoint when the first has been outstanding for longer than the given
+         * percentile (0-100) of the endpoints recent latency, whichever completes first wins and the other is
+         * cancelled. Hedges are limited to budgetPercent of the calls.
+         */
+        public LoadBalancerBuilder setHedging(double percentile, double budgetPercent) {
+            if (percentile <= 0 || percentile > 100) {
+                throw new IllegalArgumentException("Percentile must be above 0 and at most 100");
+            }
+            loadBalancer.hedgePercentile = percentile;
+            loadBalancer.hedgeBudget = new TokenBucket(budgetPercent, 10);
+            return this;
+        }
+
+        // Run on a timer with a simulated time source, everything the load balancer times is then read from it
+        LoadBalancerBuilder setTimer(HashedWheelTimer timer) {
+            loadBalancer.timer = timer;
+            loadBalancer.time = timer.getTimeSource();
+            return this;
+        }
+
+        // Seeded random for reproducible simulations, it is not thread safe enough for concurrent use
+        LoadBalancerBuilder setRandom(Random random) {
+            loadBalancer.random = random;
+            return this;
+        }
+
+        /**
+         * Let concurrent calls wrapped with the same key share a single call to the endpoint
+         */
+        public LoadBalancerBuilder setCoalescing(boolean coalescing) {
+            loadBalancer.coalescing = coalescing;
             return this;
         }
 
@@ -266,6 +1738,16 @@ public class LoadBalancer {
             return this;
         }
 
+        public LoadBalancerBuilder setPeakEwmaDecay(long decayTime, TimeUnit decayTimeUnit) {
+            loadBalancer.ewmaDecayTime = decayTimeUnit.toNanos(decayTime);
+            return this;
+        }
+
+        /**
+         * Check the endpoints every checkInterval, they are suspended after unhealthyThreshold failed checks in a row
+         * and recover after healthyThreshold successful ones. The function runs on the executor, a function that blocks
+         * should get an executor of its own with setExecutor.
+         */
         public LoadBalancerBuilder setMonitor(long checkInterval, TimeUnit checkTimeUnit,  int unhealthyThreshold, int healthyThreshold, Function<Integer, CompletableFuture<Boolean>> function) {
             loadBalancer.monitorCheckInterval = checkInterval;
             loadBalancer.monitorCheckTimeUnit = checkTimeUnit;
@@ -275,36 +1757,123 @@ public class LoadBalancer {
             return this;
         }
 
+        /**
+         * Run health checks, hedges, retries after a backoff or a timeout and cache refreshes on the executor instead of
+         * the common pool. The functions they call can block without holding up the timer that all load balancers
+         * share.
+         */
+        public LoadBalancerBuilder setExecutor(Executor executor) {
+            loadBalancer.executor = Objects.requireNonNull(executor);
+            return this;
+        }
+
+        /**
+         * Get notified about suspensions, recoveries, retries and rejections
+         */
+        public LoadBalancerBuilder setListener(LoadBalancerListener listener) {
+            loadBalancer.listener = listener;
+            return this;
+        }
+
+        /**
+         * Eject endpoints that are slower or fail more than their peers. Every interval the mean latency and error
+         * rate of each endpoint that served at least minimumCalls are compared with the other endpoints, endpoints
+         * more than the given standard deviations above the median are taken out of rotation for the ejection time,
+         * doubled for every repeated ejection.
+         *
+         * @param maxEjectionPercent share of the endpoints that can be ejected at once, one can always be ejected
+         */
+        public LoadBalancerBuilder setOutlierDetection(long interval, TimeUnit intervalTimeUnit, double deviations, int minimumCalls,
+                                                       double maxEjectionPercent, long ejectionTime, TimeUnit ejectionTimeUnit) {
+            if (maxEjectionPercent < 0 || maxEjectionPercent > 100) {
+                throw new IllegalArgumentException("Max ejection percent must be between 0 and 100");
+            }
+            loadBalancer.outlierInterval = intervalTimeUnit.toNanos(interval);
+            loadBalancer.outlierDeviations = deviations;
+            loadBalancer.outlierMinimumCalls = Math.max(minimumCalls, 1);
+            loadBalancer.outlierMaxEjectionRate = maxEjectionPercent / 100;
+            loadBalancer.outlierEjectionTime = ejectionTimeUnit.toMillis(ejectionTime);
+            return this;
+        }
+
+        /**
+         * Limit the number of health checks in flight, checks above the limit are skipped until the next interval.
+         * Checks that have not completed within the timeout count as unhealthy, the default is the check interval.
+         */
+        public LoadBalancerBuilder setMonitorLimits(int maxConcurrentChecks, long timeout, TimeUnit timeoutTimeUnit) {
+            if (maxConcurrentChecks < 1) {
+                throw new IllegalArgumentException("maxConcurrentChecks must be at least 1");
+            }
+            loadBalancer.monitorMaxConcurrentChecks = maxConcurrentChecks;
+            loadBalancer.monitorTimeout = timeoutTimeUnit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * Serve keyed calls from the cache, values are put in the cache by its function when calls complete
+         */
         public <K, V> LoadBalancerBuilder setCache(CompletableFutureCache<K, V> cache) {
-            //ConcurrentHashMap<T,T> map = ;
+            loadBalancer.cache = cache;
             return this;
         }
 
+        /**
+         * Refresh the cache every checkInterval by calling the function on the next endpoint, the function puts the
+         * values it fetches in the cache it is given
+         */
         public <T> LoadBalancerBuilder setCache(long checkInterval, TimeUnit checkTimeUnit, Class<T> returnType, BiFunction<Integer, CompletableFutureCache, CompletableFuture<T>> function) {
-            loadBalancer.monitorCheckInterval = checkInterval;
-            loadBalancer.monitorCheckTimeUnit = checkTimeUnit;
-            //loadBalancer.monitorFunction = function;
+            loadBalancer.cacheRefreshInterval = checkInterval;
+            loadBalancer.cacheRefreshTimeUnit = checkTimeUnit;
+            loadBalancer.cacheRefresh = () -> loadBalancer.wrap((index) -> function.apply(index, loadBalancer.cache));
             return this;
         }
 
         public LoadBalancer build() {
-            loadBalancer.suspensionTimes = new AtomicLongArray(loadBalancer.endpointCount);
-            loadBalancer.successCounters = new AtomicLongArray(loadBalancer.endpointCount);
-            loadBalancer.failureCounters = new AtomicLongArray(loadBalancer.endpointCount);
-
-            loadBalancer.failureTimes = new AtomicLongArray[loadBalancer.endpointCount];
-            for(int i = 0; i < loadBalancer.failureTimes.length; i++) {
-                loadBalancer.failureTimes[i] = new AtomicLongArray(loadBalancer.failureRateMaxFailures);
+            if(loadBalancer.weights != null && loadBalancer.weights.length != loadBalancer.endpointCount) {
+                throw new IllegalArgumentException("Number of weights does not match the endpoint count");
+            }
+            if(loadBalancer.priorities != null && loadBalancer.priorities.length != loadBalancer.endpointCount) {
+                throw new IllegalArgumentException("Number of priorities does not match the endpoint count");
             }
+            EndpointState[] endpoints = new EndpointState[loadBalancer.endpointCount];
+            for(int i = 0; i < endpoints.length; i++) {
+                endpoints[i] = loadBalancer.newEndpoint(loadBalancer.nextEndpointIndex++);
+                if(loadBalancer.weights != null) {
+                    endpoints[i].weight = loadBalancer.weights[i];
+                }
+                if(loadBalancer.priorities != null) {
+                    endpoints[i].priority = loadBalancer.priorities[i];
+                }
+            }
+            loadBalancer.updateGroup(endpoints);
 
             // Setup monitor if it has been set
             if(loadBalancer.monitorFunction != null) {
-                loadBalancer.monitorUnhealthyCounters = new AtomicIntegerArray(loadBalancer.endpointCount);
-                loadBalancer.monitorHealthyCounters = new AtomicIntegerArray(loadBalancer.endpointCount);
-                loadBalancer.scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
-                loadBalancer.scheduledExecutorService.scheduleWithFixedDelay(() -> {
-                    loadBalancer.checkMonitors();
-                }, 0, loadBalancer.monitorCheckInterval, loadBalancer.monitorCheckTimeUnit);
+                long interval = loadBalancer.monitorCheckTimeUnit.toNanos(loadBalancer.monitorCheckInterval);
+                loadBalancer.healthChecker = new HealthChecker(loadBalancer.timer, interval, loadBalancer.monitorUnhealthyThreshold,
+                        loadBalancer.monitorHealthyThreshold, loadBalancer.monitorMaxConcurrentChecks,
+                        loadBalancer.monitorTimeout > 0 ? loadBalancer.monitorTimeout : interval, loadBalancer.monitorFunction, loadBalancer.listener,
+                        loadBalancer.random, loadBalancer::execute);
+                for(EndpointState endpoint : endpoints) {
+                    loadBalancer.healthChecker.start(endpoint);
+                }
+            }
+
+            // Setup outlier detection if it has been set
+            if(loadBalancer.outlierInterval > 0) {
+                LoadBalancer balancer = loadBalancer;
+                loadBalancer.outlierDetector = new OutlierDetector(loadBalancer.timer, loadBalancer.outlierInterval, loadBalancer.outlierDeviations,
+                        loadBalancer.outlierMinimumCalls, loadBalancer.outlierMaxEjectionRate, loadBalancer.outlierEjectionTime,
+                        () -> balancer.group.routed.endpoints, loadBalancer.listener);
+                loadBalancer.outlierDetector.start();
+            }
+
+            // Setup cache refresh if it has been set
+            if(loadBalancer.cacheRefresh != null) {
+                if(loadBalancer.cache == null) {
+                    loadBalancer.cache = new CompletableFutureCache<Object, Object>((key, value, store) -> { });
+                }
+                loadBalancer.scheduleCacheRefresh(0);
             }
             return loadBalancer;
         }
@@ -0,0 +1,31 @@
+package dk.nversion;
+
+/**
+ * Receives events from a LoadBalancer, only implement the events you need. Methods are called on the thread that
+ * caused the event, often the thread completing a call or the shared timer thread, so they must be quick and not
+ * block or throw.
+ */
+public interface LoadBalancerListener {
+    /**
+     * An endpoint was taken out of rotation by its circuit breaker, the health checks or the outlier detection
+     */
+    default void onSuspended(int index) { }
+
+    /**
+     * A suspended endpoint was put back in rotation, when its circuit breaker closed, the health checks passed or its
+     * ejection by the outlier detection ended
+     */
+    default void onRecovered(int index) { }
+
+    /**
+     * A call failed and will be retried
+     * @param attempt the attempt that is about to start, 1 for the first retry
+     */
+    default void onRetry(int attempt, Throwable cause) { }
+
+    /**
+     * A call failed without being sent to an endpoint, because all endpoints were suspended or the concurrency
+     * limits or queue rejected it
+     */
+    default void onRejected(LoadBalancerException exception) { }
+}
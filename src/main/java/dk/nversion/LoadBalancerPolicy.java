@@ -3,6 +3,15 @@ package dk.nversion;
 
 public enum LoadBalancerPolicy {
     ROUND_ROBIN,
-    LATENCY_LAST
-    //LEAST,
+    LATENCY_LAST,
+    // Smooth round robin where endpoints get traffic in proportion to their weight
+    WEIGHTED_ROUND_ROBIN,
+    // Lowest exponentially decayed peak latency weighted by the number of calls in flight
+    PEAK_EWMA,
+    // Fewest calls in flight, scans all endpoints
+    LEAST_OUTSTANDING,
+    // Fewest calls in flight of two endpoints picked at random, constant time regardless of endpoint count
+    POWER_OF_TWO_CHOICES,
+    // Same endpoint for the same key using a Maglev lookup table, calls without a key use round robin
+    CONSISTENT_HASH
 }
@@ -0,0 +1,161 @@
+package dk.nversion;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Outlier detection on the shared timer wheel. Every interval the endpoints that served enough calls are compared with
+// their peers, and endpoints whose mean latency or error rate over the interval lies more than the configured number
+// of standard deviations above the median of the pool are ejected for a while. This catches endpoints that are slow or
+// fail more than the others without failing enough for the circuit breaker. Repeat offenders are ejected twice as long
+// each time and at most a fraction of the pool is ejected at once, so a pool wide slowdown does not empty it.
+final class OutlierDetector {
+    // Fewer judged endpoints than this do not make a meaningful median and standard deviation
+    private static final int MINIMUM_ENDPOINTS = 3;
+    // Ejection times stop doubling after this many ejections in a row
+    private static final int MAX_EJECTION_DOUBLINGS = 6;
+    // Outliers must also be this far from the median, so noise in a tight pool does not eject anything
+    private static final double MIN_LATENCY_RATIO = 1.5;
+    private static final double MIN_ERROR_RATE_GAP = 0.05;
+
+    private final HashedWheelTimer timer;
+    private final long interval;
+    private final double deviations;
+    private final int minimumCalls;
+    private final double maxEjectionRate;
+    private final long ejectionTime;
+    private final Supplier<EndpointState[]> endpoints;
+    private final LoadBalancerListener listener;
+    private volatile boolean closed = false;
+
+    /**
+     * @param interval nanoseconds between detection passes
+     * @param deviations standard deviations above the median of the pool an endpoint must be to be ejected
+     * @param minimumCalls calls an endpoint must have served in the interval to be judged
+     * @param maxEjectionRate fraction of the pool that can be ejected at once, at least one endpoint can be ejected
+     * @param ejectionTime milliseconds a first time offender is ejected for
+     */
+    OutlierDetector(HashedWheelTimer timer, long interval, double deviations, int minimumCalls, double maxEjectionRate,
+                    long ejectionTime, Supplier<EndpointState[]> endpoints, LoadBalancerListener listener) {
+        this.timer = timer;
+        this.interval = interval;
+        this.deviations = deviations;
+        this.minimumCalls = minimumCalls;
+        this.maxEjectionRate = maxEjectionRate;
+        this.ejectionTime = ejectionTime;
+        this.endpoints = endpoints;
+        this.listener = listener;
+    }
+
+    void start() {
+        timer.schedule(this::detect, interval, TimeUnit.NANOSECONDS);
+    }
+
+    // The pass already scheduled fires once more and does nothing
+    void close() {
+        closed = true;
+    }
+
+    private void detect() {
+        if (closed) {
+            return;
+        }
+        try {
+            detect(endpoints.get(), timer.getTimeSource().currentTimeMillis());
+
+        } finally {
+            start();
+        }
+    }
+
+    // Only runs on the timer thread, so the detection state of the endpoints needs no synchronization
+    private void detect(EndpointState[] endpoints, long now) {
+        int ejected = 0;
+        int judged = 0;
+        EndpointState[] candidates = new EndpointState[endpoints.length];
+        double[] latencies = new double[endpoints.length];
+        double[] errorRates = new double[endpoints.length];
+        for (EndpointState endpoint : endpoints) {
+            long successes = endpoint.successes.sum();
+            long failures = endpoint.failures.sum();
+            long latencySum = endpoint.latencySum.sum();
+            long intervalSuccesses = successes - endpoint.detectedSuccesses;
+            long intervalFailures = failures - endpoint.detectedFailures;
+            long intervalLatency = latencySum - endpoint.detectedLatencySum;
+            endpoint.detectedSuccesses = successes;
+            endpoint.detectedFailures = failures;
+            endpoint.detectedLatencySum = latencySum;
+            long calls = intervalSuccesses + intervalFailures;
+
+            long ejectedUntil = endpoint.ejectedUntil.get();
+            if (ejectedUntil != 0) {
+                if (ejectedUntil >= now) {
+                    ejected++;
+                    continue;
+                }
+                endpoint.ejectedUntil.set(0);
+                if (listener != null) {
+                    listener.onRecovered(endpoint.index);
+                }
+            }
+            if (calls >= minimumCalls) {
+                candidates[judged] = endpoint;
+                // Endpoints where every call failed are only judged on their error rate
+                latencies[judged] = intervalSuccesses > 0 ? (double) intervalLatency / intervalSuccesses : 0;
+                errorRates[judged] = (double) intervalFailures / calls;
+                judged++;
+            }
+        }
+        if (judged < MINIMUM_ENDPOINTS) {
+            return;
+        }
+
+        double[] values = Arrays.copyOf(latencies, judged);
+        double latencyLimit = Math.max(getLimit(values), median(values) * MIN_LATENCY_RATIO);
+        values = Arrays.copyOf(errorRates, judged);
+        double errorRateLimit = Math.max(getLimit(values), median(values) + MIN_ERROR_RATE_GAP);
+        int maxEjected = Math.max(1, (int) (endpoints.length * maxEjectionRate));
+        for (int i = 0; i < judged; i++) {
+            EndpointState endpoint = candidates[i];
+            if (latencies[i] > latencyLimit || errorRates[i] > errorRateLimit) {
+                if (ejected < maxEjected) {
+                    eject(endpoint, now);
+                    ejected++;
+                }
+
+            } else if (endpoint.ejections > 0) {
+                // Endpoints that behave get back to the base ejection time gradually
+                endpoint.ejections--;
+            }
+        }
+    }
+
+    private void eject(EndpointState endpoint, long now) {
+        endpoint.ejectedUntil.set(now + (ejectionTime << Math.min(endpoint.ejections, MAX_EJECTION_DOUBLINGS)));
+        endpoint.ejections++;
+        if (listener != null) {
+            listener.onSuspended(endpoint.index);
+        }
+    }
+
+    // Median plus the allowed standard deviations
+    private double getLimit(double[] values) {
+        double mean = 0;
+        for (double value : values) {
+            mean += value;
+        }
+        mean /= values.length;
+        double variance = 0;
+        for (double value : values) {
+            variance += (value - mean) * (value - mean);
+        }
+        return median(values) + deviations * Math.sqrt(variance / values.length);
+    }
+
+    // Sorts the values
+    private static double median(double[] values) {
+        Arrays.sort(values);
+        int middle = values.length / 2;
+        return values.length % 2 == 1 ? values[middle] : (values[middle - 1] + values[middle]) / 2;
+    }
+}
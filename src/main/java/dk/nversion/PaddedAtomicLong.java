@@ -0,0 +1,18 @@
+package dk.nversion;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// AtomicLong padded to fill a cache line so values in neighbouring objects don't false share
+class PaddedAtomicLong extends AtomicLong {
+    private static final long serialVersionUID = 1L;
+
+    // Volatile so the JIT does not eliminate the padding
+    public volatile long p1, p2, p3, p4, p5, p6 = 7L;
+
+    PaddedAtomicLong() {
+    }
+
+    PaddedAtomicLong(long initialValue) {
+        super(initialValue);
+    }
+}
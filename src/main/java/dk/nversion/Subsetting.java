@@ -0,0 +1,33 @@
+package dk.nversion;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Deterministic subsetting for large fleets. Clients are split in rounds of as many clients as there are subsets,
+// every round orders the endpoints by a hash of the round and the endpoint index and each client in the round takes
+// its own slice of that order. Every endpoint is in exactly one subset per round so connections are spread evenly
+// across the fleet. The order only depends on the endpoints themselves, so adding or removing one shifts each slice
+// by at most one endpoint as long as the number of subsets stays the same, and the client count is not used at all.
+final class Subsetting {
+    private static final long ROUND_SEED = 0x94D049BB133111EBL;
+
+    private Subsetting() {
+    }
+
+    static EndpointState[] select(EndpointState[] endpoints, int clientId, int subsetSize) {
+        if (endpoints.length <= subsetSize) {
+            return endpoints;
+        }
+        int subsetCount = endpoints.length / subsetSize;
+        long round = ConsistentHashTable.mix(clientId / subsetCount, ROUND_SEED);
+        int subset = clientId % subsetCount;
+
+        EndpointState[] ordered = endpoints.clone();
+        Arrays.sort(ordered, Comparator.comparingLong((EndpointState endpoint) -> ConsistentHashTable.mix(endpoint.index, round))
+                .thenComparingInt(endpoint -> endpoint.index));
+        EndpointState[] selected = Arrays.copyOfRange(ordered, subset * subsetSize, (subset + 1) * subsetSize);
+        // Keep the order of the endpoint list so round robin walks them the same way as without subsetting
+        Arrays.sort(selected, Comparator.comparingInt(endpoint -> endpoint.index));
+        return selected;
+    }
+}
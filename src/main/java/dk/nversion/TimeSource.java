@@ -0,0 +1,20 @@
+package dk.nversion;
+
+// Where the load balancer reads the time, so it can run on a simulated clock
+interface TimeSource {
+    TimeSource SYSTEM = new TimeSource() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    long nanoTime();
+
+    long currentTimeMillis();
+}
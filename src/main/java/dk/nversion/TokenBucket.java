@@ -0,0 +1,62 @@
+package dk.nversion;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Budget that earns a fraction of a token per deposit and spends whole tokens, used to cap extra load as a
+// percentage of regular traffic. Deposits go to a striped counter so the hot path does not contend.
+final class TokenBucket {
+    // Tokens are counted in thousandths
+    private static final long TOKEN = 1000;
+
+    private final LongAdder deposited = new LongAdder();
+    private final AtomicLong withdrawn = new AtomicLong();
+    private final long depositAmount;
+    private final long maxTokens;
+
+    /**
+     * @param percent tokens earned per 100 deposits
+     * @param maxTokens most tokens that can be saved up
+     */
+    TokenBucket(double percent, int maxTokens) {
+        this(percent, maxTokens, 0);
+    }
+
+    /**
+     * @param initialTokens tokens available before anything has been deposited
+     */
+    TokenBucket(double percent, int maxTokens, int initialTokens) {
+        this.depositAmount = Math.round(percent * TOKEN / 100.0);
+        this.maxTokens = maxTokens * TOKEN;
+        this.withdrawn.set(-Math.min(initialTokens, maxTokens) * TOKEN);
+    }
+
+    void deposit() {
+        deposited.increment();
+    }
+
+    boolean withdraw() {
+        return withdraw(0);
+    }
+
+    /**
+     * @param reserve fraction of the most tokens that has to be left after the withdrawal, saved for other callers. A
+     *                negative reserve lets the caller overdraw by that fraction of the most tokens, at least one token.
+     */
+    boolean withdraw(double reserve) {
+        long reserved = reserve >= 0 ? (long) (maxTokens * reserve) : -Math.max(TOKEN, (long) (maxTokens * -reserve));
+        while (true) {
+            long earned = deposited.sum() * depositAmount;
+            long spent = withdrawn.get();
+            long available = earned - spent;
+            // Forget anything saved up above the maximum
+            long spend = available > maxTokens ? earned - maxTokens + TOKEN : spent + TOKEN;
+            if (available - Math.min(reserved, 0) < TOKEN || (reserved > 0 && Math.min(available, maxTokens) - reserved < TOKEN)) {
+                return false;
+            }
+            if (withdrawn.compareAndSet(spent, spend)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package dk.nversion;
+
+import java.util.PriorityQueue;
+
+// Precomputed smooth weighted round robin order, picking is a single array lookup so it stays lock-free.
+// The schedule is immutable and rebuilt whenever a weight or the endpoints change.
+final class WeightedSchedule {
+    // Weights are scaled down if the schedule would get longer than this
+    static final int MAX_LENGTH = 1 << 16;
+
+    private final int[] schedule;
+
+    WeightedSchedule(int[] weights) {
+        long total = 0;
+        for (int weight : weights) {
+            if (weight < 0) {
+                throw new IllegalArgumentException("Weights can not be negative");
+            }
+            total += weight;
+        }
+
+        int[] scaled = new int[weights.length];
+        int length = 0;
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] > 0) {
+                scaled[i] = total > MAX_LENGTH ? (int) Math.max(1, (long) weights[i] * MAX_LENGTH / total) : weights[i];
+                length += scaled[i];
+            }
+        }
+        int divisor = 0;
+        for (int weight : scaled) {
+            divisor = gcd(divisor, weight);
+        }
+        if (divisor > 1) {
+            length /= divisor;
+            for (int i = 0; i < scaled.length; i++) {
+                scaled[i] /= divisor;
+            }
+        }
+
+        // Endpoint i is due at (k + 0.5) / weight for its k'th slot, merging these spreads every endpoint evenly
+        double[] due = new double[scaled.length];
+        PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(1, scaled.length), (a, b) -> {
+            int compare = Double.compare(due[a], due[b]);
+            return compare != 0 ? compare : Integer.compare(a, b);
+        });
+        for (int i = 0; i < scaled.length; i++) {
+            if (scaled[i] > 0) {
+                due[i] = 0.5 / scaled[i];
+                queue.add(i);
+            }
+        }
+        schedule = new int[length];
+        for (int i = 0; i < length; i++) {
+            int index = queue.poll();
+            schedule[i] = index;
+            due[index] += 1.0 / scaled[index];
+            queue.add(index);
+        }
+    }
+
+    int length() {
+        return schedule.length;
+    }
+
+    int get(int position) {
+        return schedule[Math.floorMod(position, schedule.length)];
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
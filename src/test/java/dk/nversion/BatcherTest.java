@@ -0,0 +1,137 @@
+package dk.nversion;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class BatcherTest {
+
+    private static CompletableFuture<Map<String, String>> echo(int index, List<String> keys) {
+        Map<String, String> results = new HashMap<>();
+        for (String key : keys) {
+            results.put(key, key + "@" + index);
+        }
+        return CompletableFuture.completedFuture(results);
+    }
+
+    @Test
+    public void testBatcherMaxSize() throws Exception {
+        LoadBalancer loadBalancer = LoadBalancer.builder()
+                .setEndpointCount(2)
+                .build();
+
+        List<List<String>> batches = new ArrayList<>();
+        Batcher<String, String> batcher = new Batcher<>(loadBalancer, 3, 1, TimeUnit.SECONDS, (index, retryCount, keys) -> {
+            batches.add(keys);
+            return echo(index, keys);
+        });
+
+        // The batch is sent as soon as it is full, duplicate keys share the result
+        CompletableFuture<String> first = batcher.get("a");
+        CompletableFuture<String> duplicate = batcher.get("a");
+        CompletableFuture<String> second = batcher.get("b");
+        Assert.assertFalse(first.isDone());
+        CompletableFuture<String> third = batcher.get("c");
+
+        Assert.assertEquals(Arrays.asList(Arrays.asList("a", "b", "c")), batches);
+        Assert.assertEquals("a@0", first.get());
+        Assert.assertEquals("a@0", duplicate.get());
+        Assert.assertEquals("b@0", second.get());
+        Assert.assertEquals("c@0", third.get());
+
+        // The next batch goes to the next endpoint
+        batcher.get("d");
+        batcher.get("e");
+        Assert.assertEquals("f@1", batcher.get("f").get());
+    }
+
+    @Test
+    public void testBatcherCancelFirst() throws Exception {
+        LoadBalancer loadBalancer = LoadBalancer.builder().build();
+        CompletableFuture<Map<String, String>> results = new CompletableFuture<>();
+        Batcher<String, String> batcher = new Batcher<>(loadBalancer, 100, 1, TimeUnit.SECONDS, (index, retryCount, keys) -> results);
+
+        // The first caller for a key can cancel without taking the result from the callers that joined it
+        CompletableFuture<String> first = batcher.get("x");
+        CompletableFuture<String> duplicate = batcher.get("x");
+        first.cancel(true);
+        batcher.flush();
+        Map<String, String> values = new HashMap<>();
+        values.put("x", "value");
+        results.complete(values);
+        Assert.assertTrue(first.isCancelled());
+        Assert.assertEquals("value", duplicate.get(1000, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testBatcherMaxDelay() throws Exception {
+        // The delay runs on the timer of the load balancer, here driven by a simulated clock
+        LoadBalancerSimulator.SimulatedTime time = new LoadBalancerSimulator.SimulatedTime();
+        HashedWheelTimer timer = time.newTimer();
+        LoadBalancer loadBalancer = LoadBalancer.builder()
+                .setTimer(timer)
+                .setExecutor(Runnable::run)
+                .build();
+
+        List<List<String>> batches = new ArrayList<>();
+        Batcher<String, String> batcher = new Batcher<>(loadBalancer, 100, 20, TimeUnit.MILLISECONDS, (index, retryCount, keys) -> {
+            batches.add(keys);
+            return echo(index, keys);
+        });
+
+        CompletableFuture<String> first = batcher.get("a");
+        CompletableFuture<String> second = batcher.get("b");
+        time.advance(timer, 19, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(first.isDone());
+        time.advance(timer, 2, TimeUnit.MILLISECONDS);
+        Assert.assertEquals("a@0", first.getNow(null));
+        Assert.assertEquals("b@0", second.getNow(null));
+        Assert.assertEquals(Arrays.asList(Arrays.asList("a", "b")), batches);
+
+        // Flushing sends the batch straight away
+        CompletableFuture<String> third = batcher.get("c");
+        batcher.flush();
+        Assert.assertTrue(third.isDone());
+        Assert.assertEquals(2, batches.size());
+        timer.stop();
+    }
+
+    @Test
+    public void testBatcherRetry() throws Exception {
+        LoadBalancer loadBalancer = LoadBalancer.builder()
+                .setEndpointCount(2)
+                .setRetryCount(1)
+                .build();
+
+        // The whole batch is retried on the other endpoint, keys missing from the result fail on their own
+        Batcher<String, String> batcher = new Batcher<>(loadBalancer, 2, 1, TimeUnit.SECONDS, (index, retryCount, keys) -> {
+            if (retryCount > 0) {
+                CompletableFuture<Map<String, String>> failure = new CompletableFuture<>();
+                failure.completeExceptionally(new Exception("Stuff"));
+                return failure;
+            }
+            return echo(index, keys.subList(0, 1));
+        });
+
+        CompletableFuture<String> first = batcher.get("a");
+        CompletableFuture<String> second = batcher.get("b");
+        Assert.assertEquals("a@1", first.get());
+        try {
+            second.get();
+            Assert.fail("Expected the key without a result to fail");
+
+        } catch (ExecutionException ex) {
+            Assert.assertEquals("dk.nversion.LoadBalancerException: No result for key b", ex.getMessage());
+        }
+        Assert.assertEquals(1, loadBalancer.snapshot().get(0).getFailureCount());
+        Assert.assertEquals(1, loadBalancer.snapshot().get(1).getSuccessCount());
+    }
+}
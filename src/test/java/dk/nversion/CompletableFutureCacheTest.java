@@ -0,0 +1,70 @@
+package dk.nversion;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class CompletableFutureCacheTest {
+
+    @Test
+    public void testCacheExpires() throws Exception {
+        CompletableFutureCache<String,String> cache = new CompletableFutureCache<>((key, value, store) -> {
+            store.put(key, value, 50, TimeUnit.MILLISECONDS);
+        });
+
+        cache.wrap("key", CompletableFuture.completedFuture("value"));
+        Assert.assertEquals("value", cache.get("key", "default"));
+        Thread.sleep(100);
+        Assert.assertEquals("default", cache.get("key", "default"));
+
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getEvictionCount());
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testCacheBounded() throws Exception {
+        CompletableFutureCache<String,String> cache = new CompletableFutureCache<>(2, (key, value, store) -> { });
+
+        // The entry closest to expiring goes first when the cache is full
+        cache.put("key1", "value1", 30, TimeUnit.SECONDS);
+        cache.put("key2", "value2", 10, TimeUnit.SECONDS);
+        cache.put("key3", "value3", 20, TimeUnit.SECONDS);
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals("value1", cache.get("key1", null));
+        Assert.assertNull(cache.get("key2", null));
+        Assert.assertEquals("value3", cache.get("key3", null));
+        Assert.assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testCacheReplace() throws Exception {
+        CompletableFutureCache<String,String> cache = new CompletableFutureCache<>(1, (key, value, store) -> { });
+
+        cache.put("key", "value1", 10, TimeUnit.MILLISECONDS);
+        cache.put("key", "value2", 30, TimeUnit.SECONDS);
+        Thread.sleep(50);
+        cache.put("key", "value3", 30, TimeUnit.SECONDS);
+
+        // The expired first put must not evict the replacement
+        Assert.assertEquals("value3", cache.get("key", null));
+        Assert.assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testCacheFailedFuture() throws Exception {
+        CompletableFutureCache<String,String> cache = new CompletableFutureCache<>((key, value, store) -> {
+            store.put(key, value, 30, TimeUnit.SECONDS);
+        });
+
+        CompletableFuture<String> future = new CompletableFuture<>();
+        cache.wrap("key", future);
+        future.completeExceptionally(new Exception("Stuff"));
+
+        Assert.assertNull(cache.get("key", null));
+    }
+}
@@ -0,0 +1,89 @@
+package dk.nversion;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class LoadBalancerSimulationTest {
+
+    // Three replicas where the last one browns out for half of the run
+    private static LoadBalancerSimulator brownout() {
+        return new LoadBalancerSimulator(42,
+                new LoadBalancerSimulator.Backend().latency(10, TimeUnit.MILLISECONDS, 0.3).capacity(20),
+                new LoadBalancerSimulator.Backend().latency(10, TimeUnit.MILLISECONDS, 0.3).capacity(20),
+                new LoadBalancerSimulator.Backend().latency(10, TimeUnit.MILLISECONDS, 0.3).capacity(20)
+                        .slowdown(2, 7, TimeUnit.SECONDS, 10));
+    }
+
+    @Test
+    public void testSimulationIsReproducible() throws Exception {
+        LoadBalancerSimulator.Result first = brownout().run(builder -> builder.setPolicy(LoadBalancerPolicy.POWER_OF_TWO_CHOICES).setRetryCount(1), 500, 10, TimeUnit.SECONDS);
+        LoadBalancerSimulator.Result second = brownout().run(builder -> builder.setPolicy(LoadBalancerPolicy.POWER_OF_TWO_CHOICES).setRetryCount(1), 500, 10, TimeUnit.SECONDS);
+        Assert.assertEquals(first.toString(), second.toString());
+        Assert.assertTrue(first.calls > 4500 && first.calls < 5500);
+    }
+
+    @Test
+    public void testSimulationBrownout() throws Exception {
+        Map<LoadBalancerPolicy, LoadBalancerSimulator.Result> results = new EnumMap<>(LoadBalancerPolicy.class);
+        for (LoadBalancerPolicy policy : LoadBalancerPolicy.values()) {
+            results.put(policy, brownout().run(builder -> builder.setPolicy(policy), 500, 10, TimeUnit.SECONDS));
+        }
+
+        // Round robin keeps sending a third of the calls to the slow replica
+        LoadBalancerSimulator.Result roundRobin = results.get(LoadBalancerPolicy.ROUND_ROBIN);
+        Assert.assertEquals(roundRobin.toString(), 1.0 / 3, roundRobin.getLoad(2), 0.01);
+        Assert.assertEquals(roundRobin.toString(), 0, roundRobin.unfinished);
+
+        // The load aware policies move calls away from it and cut the tail latency
+        for (LoadBalancerPolicy policy : new LoadBalancerPolicy[] { LoadBalancerPolicy.PEAK_EWMA, LoadBalancerPolicy.LEAST_OUTSTANDING, LoadBalancerPolicy.POWER_OF_TWO_CHOICES }) {
+            LoadBalancerSimulator.Result result = results.get(policy);
+            Assert.assertTrue(policy + " " + result + " vs round robin " + roundRobin, result.getLoad(2) < roundRobin.getLoad(2));
+            Assert.assertTrue(policy + " " + result + " vs round robin " + roundRobin, result.p99 < roundRobin.p99);
+        }
+    }
+
+    @Test
+    public void testSimulationOutlierDetection() throws Exception {
+        // A replica that is five times slower and one that fails a fifth of its calls, neither trips a breaker
+        LoadBalancerSimulator simulator = new LoadBalancerSimulator(11,
+                new LoadBalancerSimulator.Backend().latency(10, TimeUnit.MILLISECONDS, 0.3),
+                new LoadBalancerSimulator.Backend().latency(10, TimeUnit.MILLISECONDS, 0.3),
+                new LoadBalancerSimulator.Backend().latency(10, TimeUnit.MILLISECONDS, 0.3).failureRate(0.2),
+                new LoadBalancerSimulator.Backend().latency(10, TimeUnit.MILLISECONDS, 0.3),
+                new LoadBalancerSimulator.Backend().latency(50, TimeUnit.MILLISECONDS, 0.3));
+
+        LoadBalancerSimulator.Result plain = simulator.run(builder -> builder, 500, 30, TimeUnit.SECONDS);
+        LoadBalancerSimulator.Result detected = simulator.run(builder -> builder
+                .setOutlierDetection(1, TimeUnit.SECONDS, 1.5, 20, 40, 5, TimeUnit.SECONDS), 500, 30, TimeUnit.SECONDS);
+        String results = "without outlier detection " + plain + ", with outlier detection " + detected;
+
+        Assert.assertEquals(results, 0.2, plain.getLoad(4), 0.01);
+        Assert.assertTrue(results, detected.getLoad(2) < 0.1);
+        Assert.assertTrue(results, detected.getLoad(4) < 0.1);
+        Assert.assertTrue(results, detected.getSuccessRate() > plain.getSuccessRate());
+        Assert.assertTrue(results, detected.p99 < plain.p99);
+    }
+
+    @Test
+    public void testSimulationFailureBurst() throws Exception {
+        LoadBalancerSimulator simulator = new LoadBalancerSimulator(7,
+                new LoadBalancerSimulator.Backend().latency(5, TimeUnit.MILLISECONDS, 0.5).failureBurst(2, 5, TimeUnit.SECONDS),
+                new LoadBalancerSimulator.Backend().latency(5, TimeUnit.MILLISECONDS, 0.5),
+                new LoadBalancerSimulator.Backend().latency(5, TimeUnit.MILLISECONDS, 0.5));
+
+        LoadBalancerSimulator.Result plain = simulator.run(builder -> builder, 200, 10, TimeUnit.SECONDS);
+        LoadBalancerSimulator.Result protectedResult = simulator.run(builder -> builder
+                .setRetryCount(1)
+                .setCircuitBreaker(50, 20, 1, TimeUnit.SECONDS, 1, TimeUnit.SECONDS), 200, 10, TimeUnit.SECONDS);
+        String results = "without retries " + plain + ", with retries and breaker " + protectedResult;
+
+        // A third of the calls fail for 3 out of 10 seconds without protection, retries and the breaker hide it
+        Assert.assertEquals(results, 0.9, plain.getSuccessRate(), 0.02);
+        Assert.assertEquals(results, 1.0, protectedResult.getSuccessRate(), 0.001);
+        Assert.assertTrue(results, protectedResult.getLoad(0) < plain.getLoad(0));
+    }
+}
@@ -0,0 +1,314 @@
+package dk.nversion;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+// Drives a load balancer against simulated backends on a virtual clock. Everything runs on the calling thread and
+// all randomness comes from the seed, so the same seed and configuration always give the same numbers.
+final class LoadBalancerSimulator {
+    // Resolution of the simulated clock, backend latencies and timeouts are rounded up to it
+    private static final long TICK = TimeUnit.MICROSECONDS.toNanos(100);
+    // Calls still in flight this long after the last arrival are counted as unfinished
+    private static final long DRAIN_TIME = TimeUnit.SECONDS.toNanos(60);
+
+    private final long seed;
+    private final Backend[] backends;
+
+    LoadBalancerSimulator(long seed, Backend... backends) {
+        this.seed = seed;
+        this.backends = backends;
+    }
+
+    /**
+     * Send calls at the given rate with exponentially distributed gaps for the duration and wait for them to complete
+     *
+     * @param config configures the load balancer, the endpoint count, timer, random and executor are set by the simulator
+     */
+    Result run(UnaryOperator<LoadBalancer.LoadBalancerBuilder> config, double callsPerSecond, long duration, TimeUnit unit) {
+        SimulatedTime time = new SimulatedTime();
+        HashedWheelTimer timer = time.newTimer();
+        Random random = new Random(seed);
+        LoadBalancer loadBalancer = config.apply(LoadBalancer.builder())
+                .setEndpointCount(backends.length)
+                .setTimer(timer)
+                .setRandom(new Random(seed + 1))
+                .setExecutor(Runnable::run)
+                .build();
+
+        Run run = new Run(time, timer, random, loadBalancer, callsPerSecond, time.now + unit.toNanos(duration));
+        run.scheduleArrival();
+        while (time.now < run.end || (run.outstanding > 0 && time.now < run.end + DRAIN_TIME)) {
+            time.now += TICK;
+            timer.advance();
+        }
+        timer.stop();
+        return run.result(unit.toNanos(duration));
+    }
+
+    static final class SimulatedTime implements TimeSource {
+        // Start well away from zero so nothing looks suspended or recent at the start
+        private long now = TimeUnit.HOURS.toNanos(1);
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(now);
+        }
+
+        // A timer driven by this clock, it only runs tasks when the clock is advanced
+        HashedWheelTimer newTimer() {
+            return new HashedWheelTimer(TICK, 1024, this);
+        }
+
+        // Move the clock forward a tick at a time, running the tasks that fall due on the way
+        void advance(HashedWheelTimer timer, long duration, TimeUnit unit) {
+            long end = now + unit.toNanos(duration);
+            while (now < end) {
+                now += TICK;
+                timer.advance();
+            }
+        }
+    }
+
+    // A simulated replica, times given to the setters are relative to the start of the run
+    static final class Backend {
+        private long medianLatency = TimeUnit.MILLISECONDS.toNanos(10);
+        private double latencySpread = 0.5;
+        private double failureRate = 0;
+        private int capacity = Integer.MAX_VALUE;
+        private final List<Period> slowdowns = new ArrayList<>();
+        private final List<Period> failureBursts = new ArrayList<>();
+
+        /**
+         * @param spread sigma of the log normal latency distribution, 0 for a constant latency
+         */
+        Backend latency(long median, TimeUnit unit, double spread) {
+            this.medianLatency = unit.toNanos(median);
+            this.latencySpread = spread;
+            return this;
+        }
+
+        Backend failureRate(double failureRate) {
+            this.failureRate = failureRate;
+            return this;
+        }
+
+        // Calls above the capacity wait for one of the running calls to complete
+        Backend capacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        // Latencies are multiplied by the factor for calls started in the period
+        Backend slowdown(long from, long to, TimeUnit unit, double factor) {
+            slowdowns.add(new Period(unit.toNanos(from), unit.toNanos(to), factor));
+            return this;
+        }
+
+        // All calls started in the period fail
+        Backend failureBurst(long from, long to, TimeUnit unit) {
+            failureBursts.add(new Period(unit.toNanos(from), unit.toNanos(to), 1));
+            return this;
+        }
+
+        private long sampleLatency(Random random, long elapsed) {
+            double latency = medianLatency * Math.exp(latencySpread * random.nextGaussian());
+            for (Period slowdown : slowdowns) {
+                if (slowdown.isWithin(elapsed)) {
+                    latency *= slowdown.factor;
+                }
+            }
+            return Math.max((long) latency, 1);
+        }
+
+        private boolean isFailing(Random random, long elapsed) {
+            for (Period burst : failureBursts) {
+                if (burst.isWithin(elapsed)) {
+                    return true;
+                }
+            }
+            return random.nextDouble() < failureRate;
+        }
+    }
+
+    private static final class Period {
+        private final long from;
+        private final long to;
+        private final double factor;
+
+        Period(long from, long to, double factor) {
+            this.from = from;
+            this.to = to;
+            this.factor = factor;
+        }
+
+        boolean isWithin(long elapsed) {
+            return elapsed >= from && elapsed < to;
+        }
+    }
+
+    static final class Result {
+        final long calls;
+        final long successes;
+        final long unfinished;
+        final double throughput;
+        final long p50;
+        final long p90;
+        final long p99;
+        final long p999;
+        final long[] attempts;
+
+        Result(long calls, long successes, long unfinished, double throughput, long[] latencies, long[] attempts) {
+            this.calls = calls;
+            this.successes = successes;
+            this.unfinished = unfinished;
+            this.throughput = throughput;
+            this.p50 = percentile(latencies, 50);
+            this.p90 = percentile(latencies, 90);
+            this.p99 = percentile(latencies, 99);
+            this.p999 = percentile(latencies, 99.9);
+            this.attempts = attempts;
+        }
+
+        double getSuccessRate() {
+            return calls > 0 ? (double) successes / calls : 0;
+        }
+
+        // Share of the attempts that went to each endpoint
+        double getLoad(int index) {
+            long total = 0;
+            for (long count : attempts) {
+                total += count;
+            }
+            return total > 0 ? (double) attempts[index] / total : 0;
+        }
+
+        private static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return -1;
+            }
+            int position = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(position, 0)];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder load = new StringBuilder();
+            for (int i = 0; i < attempts.length; i++) {
+                load.append(i > 0 ? " " : "").append(String.format("%.1f%%", getLoad(i) * 100));
+            }
+            return String.format("calls=%d success=%.2f%% unfinished=%d throughput=%.1f/s p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms load=[%s]",
+                    calls, getSuccessRate() * 100, unfinished, throughput, p50 / 1e6, p90 / 1e6, p99 / 1e6, p999 / 1e6, load);
+        }
+    }
+
+    // The state of a single run
+    private final class Run {
+        private final SimulatedTime time;
+        private final HashedWheelTimer timer;
+        private final Random random;
+        private final LoadBalancer loadBalancer;
+        private final double callsPerSecond;
+        private final long start;
+        private final long end;
+        private final int[] busy = new int[backends.length];
+        private final List<Queue<Runnable>> waiting = new ArrayList<>();
+        private final long[] attempts = new long[backends.length];
+        private final List<Long> latencies = new ArrayList<>();
+        private long calls = 0;
+        private long successes = 0;
+        private int outstanding = 0;
+
+        Run(SimulatedTime time, HashedWheelTimer timer, Random random, LoadBalancer loadBalancer, double callsPerSecond, long end) {
+            this.time = time;
+            this.timer = timer;
+            this.random = random;
+            this.loadBalancer = loadBalancer;
+            this.callsPerSecond = callsPerSecond;
+            this.start = time.now;
+            this.end = end;
+            for (int i = 0; i < backends.length; i++) {
+                waiting.add(new ArrayDeque<>());
+            }
+        }
+
+        void scheduleArrival() {
+            long gap = (long) (-Math.log(1.0 - random.nextDouble()) / callsPerSecond * TimeUnit.SECONDS.toNanos(1));
+            if (time.now + gap >= end) {
+                return;
+            }
+            timer.schedule(() -> {
+                arrive();
+                scheduleArrival();
+            }, gap, TimeUnit.NANOSECONDS);
+        }
+
+        private void arrive() {
+            long callStart = time.now;
+            calls++;
+            outstanding++;
+            loadBalancer.wrap((index, retryCount) -> call(index)).whenComplete((value, ex) -> {
+                outstanding--;
+                if (ex == null) {
+                    successes++;
+                    latencies.add(time.now - callStart);
+                }
+            });
+        }
+
+        private CompletableFuture<Integer> call(int index) {
+            CompletableFuture<Integer> future = new CompletableFuture<>();
+            attempts[index]++;
+            Runnable request = () -> process(index, future);
+            if (busy[index] < backends[index].capacity) {
+                request.run();
+
+            } else {
+                waiting.get(index).add(request);
+            }
+            return future;
+        }
+
+        // Cancelled and timed out attempts keep the backend busy until they would have completed
+        private void process(int index, CompletableFuture<Integer> future) {
+            Backend backend = backends[index];
+            long elapsed = time.now - start;
+            long latency = backend.sampleLatency(random, elapsed);
+            boolean failing = backend.isFailing(random, elapsed);
+            busy[index]++;
+            timer.schedule(() -> {
+                busy[index]--;
+                Runnable next = waiting.get(index).poll();
+                if (next != null) {
+                    next.run();
+                }
+                if (failing) {
+                    future.completeExceptionally(new Exception("Simulated failure on " + index));
+
+                } else {
+                    future.complete(index);
+                }
+            }, latency, TimeUnit.NANOSECONDS);
+        }
+
+        Result result(long duration) {
+            long[] sorted = new long[latencies.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = latencies.get(i);
+            }
+            Arrays.sort(sorted);
+            return new Result(calls, successes, outstanding, successes / (duration / 1e9), sorted, attempts);
+        }
+    }
+}
@@ -4,10 +4,27 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 public class LoadBalancerTest {
 
@@ -19,9 +36,9 @@ public class LoadBalancerTest {
         Assert.assertEquals(future.get(), "url");
     }
 
-    private CompletableFuture<String> simpleSuccess(String url) {
-        CompletableFuture<String> completableFuture = new CompletableFuture<>();
-        completableFuture.complete(url);
+    private <T> CompletableFuture<T> simpleSuccess(T value) {
+        CompletableFuture<T> completableFuture = new CompletableFuture<>();
+        completableFuture.complete(value);
         return completableFuture;
     }
 
@@ -60,6 +77,209 @@ public class LoadBalancerTest {
         }
     }
 
+    @Test
+    public void testLoadBalancedRetrySharedFunction() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setRetryCount(1)
+                .setEndpointCount(2)
+                .build();
+
+        // Two concurrent calls sharing one function instance must keep their own retry state
+        List<Integer> retryCounts = new ArrayList<>();
+        List<CompletableFuture<String>> pending = new ArrayList<>();
+        BiFunction<Integer, Integer, CompletableFuture<String>> function = (index, retryCount) -> {
+            CompletableFuture<String> completableFuture = new CompletableFuture<>();
+            retryCounts.add(retryCount);
+            pending.add(completableFuture);
+            return completableFuture;
+        };
+
+        CompletableFuture<String> first = config.wrap(function);
+        CompletableFuture<String> second = config.wrap(function);
+        pending.get(0).completeExceptionally(new Exception("Stuff"));
+        pending.get(1).completeExceptionally(new Exception("Stuff"));
+        pending.get(2).complete("first");
+        pending.get(3).complete("second");
+
+        Assert.assertEquals("first", first.get());
+        Assert.assertEquals("second", second.get());
+        Assert.assertEquals(Arrays.asList(1, 1, 0, 0), retryCounts);
+    }
+
+    @Test
+    public void testLoadBalancedRetrySynchronous() throws Exception {
+        int retries = 100000;
+        LoadBalancer config = LoadBalancer.builder()
+                .setRetryCount(retries)
+                .build();
+
+        // Synchronously failed futures should be retried without growing the stack
+        CompletableFuture<Integer> future = config.wrap((index, retryCount) -> {
+            CompletableFuture<Integer> completableFuture = new CompletableFuture<>();
+            if (retryCount > 0) {
+                completableFuture.completeExceptionally(new Exception("Stuff"));
+
+            } else {
+                completableFuture.complete(retries);
+            }
+            return completableFuture;
+        });
+
+        Assert.assertEquals(Integer.valueOf(retries), future.get());
+    }
+
+    @Test
+    public void testLoadBalancedRetryBudget() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setRetryCount(1)
+                .setRetryBudget(50, 2)
+                .build();
+
+        // The two saved up retries are spent, after that it takes two successful calls to earn one
+        List<Integer> retryCounts = new ArrayList<>();
+        BiFunction<Integer, Integer, CompletableFuture<String>> failing = (index, retryCount) -> {
+            retryCounts.add(retryCount);
+            CompletableFuture<String> completableFuture = new CompletableFuture<>();
+            completableFuture.completeExceptionally(new Exception("Stuff"));
+            return completableFuture;
+        };
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(config.wrap(failing).isCompletedExceptionally());
+        }
+        Assert.assertEquals(Arrays.asList(1, 0, 1, 0, 1), retryCounts);
+
+        config.wrap(() -> simpleSuccess("url0"));
+        config.wrap(() -> simpleSuccess("url0"));
+        retryCounts.clear();
+        Assert.assertTrue(config.wrap(failing).isCompletedExceptionally());
+        Assert.assertEquals(Arrays.asList(1, 0), retryCounts);
+    }
+
+    @Test
+    public void testLoadBalancedRetryBackoff() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setRetryCount(3)
+                .setRetryBackoff(10, 20, TimeUnit.MILLISECONDS)
+                .build();
+
+        // Retries wait on the timer instead of running straight away on the failing thread
+        List<Long> starts = new ArrayList<>();
+        CompletableFuture<String> future = config.wrap((index, retryCount) -> {
+            starts.add(System.nanoTime());
+            CompletableFuture<String> completableFuture = new CompletableFuture<>();
+            completableFuture.completeExceptionally(new Exception("Stuff"));
+            return completableFuture;
+        });
+        Assert.assertEquals(1, starts.size());
+
+        try {
+            future.get(1000, TimeUnit.MILLISECONDS);
+            Assert.fail("Expected the call to fail");
+
+        } catch (ExecutionException ex) {
+            Assert.assertEquals("java.lang.Exception: Stuff", ex.getMessage());
+        }
+        Assert.assertEquals(4, starts.size());
+        // Backoff is at most 10, 20 and 20 ms with the timer tick on top
+        Assert.assertTrue(starts.get(3) - starts.get(0) <= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void testLoadBalancedRetryOtherEndpoint() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setRetryCount(1)
+                .setEndpointCount(2)
+                .setPolicy(LoadBalancerPolicy.LEAST_OUTSTANDING)
+                .build();
+
+        // Endpoint 0 has the fewest calls in flight but the retry should still avoid it after it failed
+        CompletableFuture<String> hanging = new CompletableFuture<>();
+        List<Integer> indexes = new ArrayList<>();
+        config.wrap((index) -> {
+            indexes.add(index);
+            return hanging;
+        });
+        CompletableFuture<String> future = config.wrap((index, retryCount) -> {
+            indexes.add(index);
+            CompletableFuture<String> completableFuture = new CompletableFuture<>();
+            if (retryCount > 0) {
+                completableFuture.completeExceptionally(new Exception("Stuff"));
+
+            } else {
+                completableFuture.complete("url" + index);
+            }
+            return completableFuture;
+        });
+
+        int busy = indexes.get(0);
+        Assert.assertEquals(Arrays.asList(busy, 1 - busy, busy), indexes);
+        Assert.assertEquals("url" + busy, future.get());
+        hanging.complete("done");
+    }
+
+    @Test
+    public void testLoadBalancedBlockingRetry() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setRetryCount(1)
+                .setEndpointCount(2)
+                .build();
+
+        // The attempts run on this thread and the retry goes to the other endpoint
+        List<Integer> indexes = new ArrayList<>();
+        Thread caller = Thread.currentThread();
+        String result = config.call((index, retryCount, deadline) -> {
+            Assert.assertSame(caller, Thread.currentThread());
+            indexes.add(index);
+            if (retryCount > 0) {
+                throw new Exception("Stuff");
+            }
+            return "url" + index;
+        });
+        Assert.assertEquals(Arrays.asList(0, 1), indexes);
+        Assert.assertEquals("url1", result);
+
+        // The exception of the last attempt is thrown once the retries are used up
+        try {
+            config.call(() -> {
+                throw new IllegalStateException("Failed");
+            });
+            Assert.fail("Expected the call to fail");
+
+        } catch (IllegalStateException ex) {
+            Assert.assertEquals("Failed", ex.getMessage());
+        }
+        List<EndpointSnapshot> snapshots = config.snapshot();
+        Assert.assertEquals(0, snapshots.get(0).getSuccessCount());
+        Assert.assertEquals(2, snapshots.get(0).getFailureCount());
+        Assert.assertEquals(1, snapshots.get(1).getSuccessCount());
+        Assert.assertEquals(1, snapshots.get(1).getFailureCount());
+    }
+
+    @Test
+    public void testLoadBalancedBlockingInterrupted() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setRetryCount(3)
+                .setEndpointCount(2)
+                .build();
+
+        // An interrupted attempt is not retried and does not count against the endpoint
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            config.call((index, retryCount, deadline) -> {
+                attempts.incrementAndGet();
+                throw new InterruptedException();
+            });
+            Assert.fail("Expected the call to be interrupted");
+
+        } catch (InterruptedException ex) {
+            Assert.assertEquals(1, attempts.get());
+        }
+        for (EndpointSnapshot snapshot : config.snapshot()) {
+            Assert.assertEquals(0, snapshot.getFailureCount());
+            Assert.assertEquals(0, snapshot.getInFlight());
+        }
+    }
+
     @Test
     public void testLoadBalancedRoundRobin() throws Exception {
         String[] urls = new String[] { "url1", "url2", "url3" };
@@ -125,6 +345,80 @@ public class LoadBalancerTest {
         Assert.assertEquals("dk.nversion.LoadBalancerException: All backends suspended", results.get(2).getMessage());
     }
 
+    @Test
+    public void testLoadBalancedCircuitBreaker() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setCircuitBreaker(50, 4, 30, TimeUnit.SECONDS, 50, TimeUnit.MILLISECONDS)
+                .build();
+
+        // Failures below the minimum volume or the failure rate keep the breaker closed
+        CompletableFuture<String> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new Exception("Normal exception"));
+        config.wrap(() -> failure);
+        config.wrap(() -> failure);
+        config.wrap(() -> failure);
+        Assert.assertEquals(0, config.snapshot().get(0).getSuspendedUntil());
+        config.wrap(() -> simpleSuccess("url0"));
+        config.wrap(() -> simpleSuccess("url0"));
+        config.wrap(() -> simpleSuccess("url0"));
+        config.wrap(() -> simpleSuccess("url0"));
+        Assert.assertEquals(0, config.snapshot().get(0).getSuspendedUntil());
+
+        // Four failures out of eight calls opens the breaker
+        config.wrap(() -> failure);
+        Assert.assertTrue(config.snapshot().get(0).getSuspendedUntil() > 0);
+        try {
+            config.wrap(() -> simpleSuccess("url0")).get();
+            Assert.fail("Expected the endpoint to be suspended");
+
+        } catch (ExecutionException ex) {
+            Assert.assertEquals("dk.nversion.LoadBalancerException: All backends suspended", ex.getMessage());
+        }
+
+        // After the open time a limited number of probes are let through
+        Thread.sleep(60);
+        List<CompletableFuture<String>> probes = new ArrayList<>();
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(config.wrap(() -> {
+                CompletableFuture<String> completableFuture = new CompletableFuture<>();
+                probes.add(completableFuture);
+                return completableFuture;
+            }));
+        }
+        Assert.assertEquals(3, probes.size());
+        Assert.assertTrue(futures.get(3).isCompletedExceptionally());
+
+        // The endpoint rejoins once the probes succeed
+        for (CompletableFuture<String> probe : probes) {
+            probe.complete("url0");
+        }
+        Assert.assertEquals(0, config.snapshot().get(0).getSuspendedUntil());
+        Assert.assertEquals("url0", config.wrap(() -> simpleSuccess("url0")).get());
+    }
+
+    @Test
+    public void testLoadBalancedCircuitBreakerProbeFailure() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setMaxFailureRate(1, 30, TimeUnit.SECONDS, 50, TimeUnit.MILLISECONDS)
+                .build();
+
+        CompletableFuture<String> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new Exception("Normal exception"));
+        config.wrap(() -> failure);
+        Thread.sleep(60);
+
+        // A failed probe opens the breaker again straight away
+        Assert.assertTrue(config.wrap(() -> failure).isCompletedExceptionally());
+        try {
+            config.wrap(() -> simpleSuccess("url0")).get();
+            Assert.fail("Expected the endpoint to be suspended");
+
+        } catch (ExecutionException ex) {
+            Assert.assertEquals("dk.nversion.LoadBalancerException: All backends suspended", ex.getMessage());
+        }
+    }
+
     @Test
     public void testLoadBalancerMonitor() throws Exception {
         String[] urls = new String[] { "url1" };
@@ -166,77 +460,1251 @@ public class LoadBalancerTest {
     }
 
 
-    /* @Test // TODO: Implement test for latency based load balancing
-    public void testLoadBalancerLatency() throws Exception {
-        String[] urls = new String[] { "url1" };
-
+    @Test
+    public void testLoadBalancerMonitorTimeout() throws Exception {
+        AtomicInteger checks = new AtomicInteger();
+        List<CompletableFuture<Boolean>> hanging = Collections.synchronizedList(new ArrayList<>());
         LoadBalancer config = LoadBalancer.builder()
-                .setEndpointCount(urls.length)
-                .setPolicy(LoadBalancerPolicy.LATENCY_LAST)
+                .setEndpointCount(2)
+                .setMonitor(20, TimeUnit.MILLISECONDS, 1, 1, (index) -> {
+                    checks.incrementAndGet();
+                    // Endpoint 0 never answers and endpoint 1 answers null, both count as unhealthy
+                    if (index == 0) {
+                        CompletableFuture<Boolean> future = new CompletableFuture<>();
+                        hanging.add(future);
+                        return future;
+                    }
+                    return CompletableFuture.completedFuture(null);
+                })
+                .setMonitorLimits(10, 10, TimeUnit.MILLISECONDS)
                 .build();
 
-        Thread.sleep(500);
-        List<CompletableFuture<String>> futureResults = new ArrayList<>();
-        for(int i = 0; i < 3; i++) {
-            CompletableFuture<String> roundRobinFuture = config.wrap(() -> {
-                CompletableFuture<String> completableFuture = new CompletableFuture<>();
-                completableFuture.completeExceptionally(new Exception("Normal exception"));
-                return completableFuture;
-            });
-            futureResults.add(roundRobinFuture);
+        Thread.sleep(200);
+        Assert.assertEquals(Long.MAX_VALUE, config.snapshot().get(0).getSuspendedUntil());
+        Assert.assertEquals(Long.MAX_VALUE, config.snapshot().get(1).getSuspendedUntil());
+        // The futures returned by the check function are not completed by the timeout
+        Assert.assertFalse(hanging.isEmpty());
+        synchronized (hanging) {
+            for (CompletableFuture<Boolean> future : hanging) {
+                Assert.assertFalse(future.isDone());
+            }
         }
 
-        List<Exception> results = new ArrayList<>();
-        for(CompletableFuture<String> future : futureResults) {
+        // No more checks once the load balancer is closed
+        config.close();
+        Thread.sleep(50);
+        int closed = checks.get();
+        Thread.sleep(100);
+        Assert.assertEquals(closed, checks.get());
+    }
+
+    @Test
+    public void testLoadBalancerMonitorNullFuture() throws Exception {
+        AtomicInteger checks = new AtomicInteger();
+        LoadBalancer config = LoadBalancer.builder()
+                .setMonitor(10, TimeUnit.MILLISECONDS, 1, 1, (index) -> {
+                    checks.incrementAndGet();
+                    return null;
+                })
+                .setMonitorLimits(1, 10, TimeUnit.MILLISECONDS)
+                .build();
+
+        // A missing future counts as unhealthy, and does not hold on to the only check slot
+        Thread.sleep(200);
+        Assert.assertEquals(Long.MAX_VALUE, config.snapshot().get(0).getSuspendedUntil());
+        Assert.assertTrue(checks.get() > 2);
+        config.close();
+    }
+
+    @Test
+    public void testLoadBalancerMonitorBlocking() throws Exception {
+        // A check function that blocks holds up its own executor, not the timer every load balancer shares
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        LoadBalancer monitored = LoadBalancer.builder()
+                .setEndpointCount(1)
+                .setMonitor(10, TimeUnit.MILLISECONDS, 1, 1, (index) -> {
+                    blocked.countDown();
+                    try {
+                        release.await();
+
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return CompletableFuture.completedFuture(true);
+                })
+                .setMonitorLimits(1, 10, TimeUnit.MILLISECONDS)
+                .setExecutor(executor)
+                .build();
+        try {
+            Assert.assertTrue(blocked.await(1000, TimeUnit.MILLISECONDS));
+            LoadBalancer config = LoadBalancer.builder()
+                    .setTimeout(10, TimeUnit.MILLISECONDS)
+                    .build();
             try {
-                future.get();
+                config.wrap(() -> new CompletableFuture<String>()).get(1000, TimeUnit.MILLISECONDS);
+                Assert.fail("Expected the attempt to time out");
 
-            } catch (Exception ex){
-                results.add(ex);
+            } catch (ExecutionException ex) {
+                Assert.assertEquals("java.util.concurrent.TimeoutException: Attempt timed out", ex.getMessage());
             }
+
+        } finally {
+            release.countDown();
+            monitored.close();
+            executor.shutdown();
         }
+    }
 
-        Assert.assertEquals("dk.nversion.LoadBalancerException: All backends suspended", results.get(0).getMessage());
-        Assert.assertEquals("dk.nversion.LoadBalancerException: All backends suspended", results.get(1).getMessage());
-        Assert.assertEquals("dk.nversion.LoadBalancerException: All backends suspended", results.get(2).getMessage());
-    } */
+    @Test
+    public void testLoadBalancerMonitorPassive() throws Exception {
+        // Runs on a simulated clock so a slow scheduler can not make a check beat the calls
+        LoadBalancerSimulator.SimulatedTime time = new LoadBalancerSimulator.SimulatedTime();
+        HashedWheelTimer timer = time.newTimer();
+        List<Integer> checked = new ArrayList<>();
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(2)
+                .setMonitor(50, TimeUnit.MILLISECONDS, 1, 1, (index) -> {
+                    checked.add(index);
+                    return CompletableFuture.completedFuture(true);
+                })
+                .setTimer(timer)
+                .setRandom(new Random(1))
+                .setExecutor(Runnable::run)
+                .build();
 
-    // TODO: Implement timeout support - http://www.nurkiewicz.com/2014/12/asynchronous-timeouts-with.html
+        // Endpoints serving successful calls are not checked
+        for (int i = 0; i < 60; i++) {
+            config.wrap((index) -> simpleSuccess(index)).get();
+            time.advance(timer, 5, TimeUnit.MILLISECONDS);
+        }
+        Assert.assertEquals(Collections.emptyList(), checked);
 
-    // TODO: Implement support for setting a master for retry, fx. in cases where we have a master and several slaves with deplyed replication.
+        // They are once the calls stop
+        time.advance(timer, 200, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(checked.contains(0) && checked.contains(1));
+        config.close();
+        timer.stop();
+    }
 
-    // TODO: Implement support for caching
     @Test
-    public void testLoadBalancerSelfRefreshingCaching() throws Exception {
-        String[] urls = new String[] { "url1" };
+    public void testLoadBalancerSnapshotPercentiles() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setCircuitBreaker(50, 100, 30, TimeUnit.SECONDS, 1, TimeUnit.SECONDS)
+                .build();
+
+        EndpointSnapshot snapshot = config.snapshot().get(0);
+        Assert.assertEquals(0, snapshot.getLatencyCount());
+        Assert.assertEquals(-1, snapshot.getLatencyP50());
+        Assert.assertEquals(CircuitBreakerState.CLOSED, snapshot.getCircuitBreakerState());
+        Assert.assertEquals(-1, snapshot.getConcurrencyLimit());
+
+        for (int i = 0; i < 10; i++) {
+            CompletableFuture<String> pending = new CompletableFuture<>();
+            CompletableFuture<String> future = config.wrap(() -> pending);
+            Thread.sleep(i < 9 ? 1 : 20);
+            pending.complete("url0");
+            future.get();
+        }
+        CompletableFuture<String> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new Exception("Stuff"));
+        config.wrap(() -> failure);
+
+        snapshot = config.snapshot().get(0);
+        Assert.assertEquals(10, snapshot.getLatencyCount());
+        Assert.assertEquals(1, snapshot.getFailureLatencyCount());
+        Assert.assertTrue(snapshot.getLatencyP50() >= TimeUnit.MILLISECONDS.toNanos(1));
+        Assert.assertTrue(snapshot.getLatencyP50() < TimeUnit.MILLISECONDS.toNanos(20));
+        Assert.assertTrue(snapshot.getLatencyP99() >= TimeUnit.MILLISECONDS.toNanos(20));
+        Assert.assertTrue(snapshot.getLatencyP90() <= snapshot.getLatencyP99());
+        Assert.assertTrue(snapshot.getLatencyP99() <= snapshot.getLatencyP999());
+    }
 
+    @Test
+    public void testLoadBalancerListener() throws Exception {
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
         LoadBalancer config = LoadBalancer.builder()
-                .setEndpointCount(urls.length)
-                .setCache(100, TimeUnit.MILLISECONDS, String.class, (index, cache) -> {
-                    CompletableFuture<String> valueFuture = new CompletableFuture<String>();
-                    valueFuture.complete("ValueToBeCached");
-                    return valueFuture;
+                .setRetryCount(1)
+                .setEndpointCount(2)
+                .setMaxFailureRate(1, 30, TimeUnit.SECONDS, 20, TimeUnit.MILLISECONDS)
+                .setListener(new LoadBalancerListener() {
+                    @Override
+                    public void onSuspended(int index) {
+                        events.add("suspended " + index);
+                    }
+
+                    @Override
+                    public void onRecovered(int index) {
+                        events.add("recovered " + index);
+                    }
+
+                    @Override
+                    public void onRetry(int attempt, Throwable cause) {
+                        events.add("retry " + attempt);
+                    }
+
+                    @Override
+                    public void onRejected(LoadBalancerException exception) {
+                        events.add("rejected " + exception.getMessage());
+                    }
                 })
                 .build();
+
+        CompletableFuture<String> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new Exception("Stuff"));
+        config.wrap(() -> failure);
+        config.wrap(() -> failure);
+        Assert.assertEquals(Arrays.asList("suspended 0", "retry 1", "suspended 1", "rejected All backends suspended"), events);
+        Assert.assertEquals(CircuitBreakerState.OPEN, config.snapshot().get(0).getCircuitBreakerState());
+
+        // Three successful probes on each endpoint close the breakers
+        events.clear();
+        Thread.sleep(30);
+        for (int i = 0; i < 6; i++) {
+            config.wrap((index) -> simpleSuccess(index));
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList("recovered 0", "recovered 1")), new HashSet<>(events));
+        Assert.assertEquals(CircuitBreakerState.CLOSED, config.snapshot().get(0).getCircuitBreakerState());
     }
 
     @Test
-    public void testLoadBalancerCaching() throws Exception {
-        String[] urls = new String[] { "url1" };
+    public void testLoadBalancerSnapshot() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setRetryCount(1)
+                .setEndpointCount(2)
+                .build();
 
-        CompletableFutureCache<String,String> cache = new CompletableFutureCache<>((key, value, store) -> {
-            store.put(key, value, 100, TimeUnit.MILLISECONDS);
+        // First attempt fails on endpoint 0 and the retry succeeds on endpoint 1
+        config.wrap((index, retryCount) -> {
+            CompletableFuture<String> completableFuture = new CompletableFuture<>();
+            if (retryCount > 0) {
+                completableFuture.completeExceptionally(new Exception("Stuff"));
+
+            } else {
+                completableFuture.complete("url");
+            }
+            return completableFuture;
+        }).get();
+
+        List<EndpointSnapshot> snapshots = config.snapshot();
+        Assert.assertEquals(2, snapshots.size());
+        Assert.assertEquals(0, snapshots.get(0).getSuccessCount());
+        Assert.assertEquals(1, snapshots.get(0).getFailureCount());
+        Assert.assertEquals(1, snapshots.get(1).getSuccessCount());
+        Assert.assertEquals(0, snapshots.get(1).getFailureCount());
+    }
+
+    @Test
+    public void testLoadBalancerPeakEwma() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(2)
+                .setPolicy(LoadBalancerPolicy.PEAK_EWMA)
+                .build();
+
+        // Slow failure on the first endpoint penalizes it
+        CompletableFuture<String> failure = new CompletableFuture<>();
+        List<Integer> indexes = new ArrayList<>();
+        CompletableFuture<String> failed = config.wrap((index) -> {
+            indexes.add(index);
+            return failure;
         });
+        Thread.sleep(5);
+        failure.completeExceptionally(new Exception("Stuff"));
+        try {
+            failed.get();
+            Assert.fail("Expected the call to fail");
 
+        } catch (ExecutionException ex) {
+            Assert.assertEquals("java.lang.Exception: Stuff", ex.getMessage());
+        }
+
+        for(int i = 0; i < 3; i++) {
+            config.wrap((index) -> {
+                indexes.add(index);
+                return simpleSuccess("url");
+            }).get();
+        }
+        Assert.assertEquals(Arrays.asList(0, 1, 1, 1), indexes);
+    }
+
+    @Test
+    public void testLoadBalancerPeakEwmaInFlight() throws Exception {
         LoadBalancer config = LoadBalancer.builder()
-                .setEndpointCount(urls.length)
+                .setEndpointCount(2)
+                .setPolicy(LoadBalancerPolicy.PEAK_EWMA)
                 .build();
 
-            CompletableFuture<String> cachedFuture = config.wrap((index) -> {
-                CompletableFuture<String> result = cache.wrap(urls[index], simpleSuccess(urls[index]));
-                return result;
+        // Endpoint with a call outstanding is avoided while the other one is idle
+        List<Integer> indexes = new ArrayList<>();
+        config.wrap((index) -> {
+            indexes.add(index);
+            return new CompletableFuture<String>();
         });
+        for(int i = 0; i < 3; i++) {
+            config.wrap((index) -> {
+                indexes.add(index);
+                return simpleSuccess("url");
+            }).get();
+        }
+        Assert.assertEquals(Arrays.asList(0, 1, 1, 1), indexes);
+        Assert.assertEquals(1, config.snapshot().get(0).getInFlight());
+    }
+
+    @Test
+    public void testLoadBalancerLeastOutstanding() throws Exception {
+        LoadBalancer config = outstandingLoadBalancer(LoadBalancerPolicy.LEAST_OUTSTANDING, 3);
+        List<Integer> indexes = new ArrayList<>();
+        List<CompletableFuture<String>> attempts = new ArrayList<>();
+        outstandingCalls(config, 6, indexes, attempts);
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 0, 1, 2), indexes);
+
+        // Once the calls to endpoint 2 complete it is the emptiest, so it gets the next calls out of turn
+        attempts.get(2).complete("done");
+        attempts.get(5).complete("done");
+        indexes.clear();
+        outstandingCalls(config, 2, indexes, attempts);
+        Assert.assertEquals(Arrays.asList(2, 2), indexes);
+    }
+
+    @Test
+    public void testLoadBalancerPowerOfTwoChoices() throws Exception {
+        // With two endpoints both are always compared, so the idle one wins every other call
+        LoadBalancer config = outstandingLoadBalancer(LoadBalancerPolicy.POWER_OF_TWO_CHOICES, 2);
+        List<Integer> indexes = new ArrayList<>();
+        List<CompletableFuture<String>> attempts = new ArrayList<>();
+        outstandingCalls(config, 4, indexes, attempts);
+        Assert.assertNotEquals(indexes.get(0), indexes.get(1));
+        Assert.assertNotEquals(indexes.get(2), indexes.get(3));
+
+        // Completing both calls on the endpoint that got the first call makes it the emptiest for the next two
+        int idle = indexes.get(0);
+        for (int i = 0; i < 4; i++) {
+            if (indexes.get(i) == idle) {
+                attempts.get(i).complete("done");
+            }
+        }
+        indexes.clear();
+        outstandingCalls(config, 2, indexes, attempts);
+        Assert.assertEquals(Arrays.asList(idle, idle), indexes);
+    }
 
+    private LoadBalancer outstandingLoadBalancer(LoadBalancerPolicy policy, int endpointCount) {
+        return LoadBalancer.builder()
+                .setEndpointCount(endpointCount)
+                .setPolicy(policy)
+                .build();
+    }
+
+    // Makes calls that only complete when their attempt is completed, and records the index each was sent to
+    private void outstandingCalls(LoadBalancer config, int calls, List<Integer> indexes, List<CompletableFuture<String>> attempts) {
+        for(int i = 0; i < calls; i++) {
+            config.wrap((index) -> {
+                indexes.add(index);
+                CompletableFuture<String> completableFuture = new CompletableFuture<>();
+                attempts.add(completableFuture);
+                return completableFuture;
+            });
+        }
+    }
+
+    @Test
+    public void testLoadBalancerWeightedRoundRobin() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(3)
+                .setWeights(3, 1, 0)
+                .setPolicy(LoadBalancerPolicy.WEIGHTED_ROUND_ROBIN)
+                .build();
+
+        List<Integer> indexes = new ArrayList<>();
+        for(int i = 0; i < 8; i++) {
+            indexes.add(config.wrap((index) -> simpleSuccess(index)).get());
+        }
+        Assert.assertEquals(Arrays.asList(0, 0, 1, 0, 0, 0, 1, 0), indexes);
+
+        // Reweighting at runtime
+        config.setWeight(0, 0);
+        config.setWeight(2, 1);
+        indexes.clear();
+        for(int i = 0; i < 4; i++) {
+            indexes.add(config.wrap((index) -> simpleSuccess(index)).get());
+        }
+        Assert.assertEquals(Arrays.asList(1, 2, 1, 2), indexes);
+    }
+
+    @Test
+    public void testLoadBalancerWeightedRoundRobinLargeWeights() throws Exception {
+        // The weights add up to more than the schedule length so they are scaled down
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(2)
+                .setWeights(50000, 20000)
+                .setPolicy(LoadBalancerPolicy.WEIGHTED_ROUND_ROBIN)
+                .build();
+
+        int[] counts = new int[2];
+        for(int i = 0; i < 7000; i++) {
+            counts[config.wrap((index) -> simpleSuccess(index)).get()]++;
+        }
+        Assert.assertTrue("Endpoint 0 got " + counts[0], counts[0] > 4900 && counts[0] < 5100);
+    }
+
+    @Test
+    public void testLoadBalancerPriorities() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(4)
+                .setPriorities(0, 0, 1, 1)
+                .setMaxFailureRate(1, 30, TimeUnit.SECONDS, 60, TimeUnit.SECONDS)
+                .build();
+
+        // Everything stays in the local tier while it is healthy
+        int[] counts = new int[4];
+        for (int i = 0; i < 1000; i++) {
+            counts[config.wrap((index) -> simpleSuccess(index)).get()]++;
+        }
+        Assert.assertEquals(1000, counts[0] + counts[1]);
+
+        // With half of the local tier suspended it takes 0.5 / 0.7 of the calls and the rest spills over
+        AtomicInteger failed = new AtomicInteger();
+        config.wrap((index) -> {
+            failed.set(index);
+            CompletableFuture<Integer> completableFuture = new CompletableFuture<>();
+            completableFuture.completeExceptionally(new Exception("Stuff"));
+            return completableFuture;
+        }).exceptionally(ex -> null).get();
+        int local = 1 - failed.get();
+        // Let the cached tier shares catch up with the suspension
+        Thread.sleep(20);
+        counts = new int[4];
+        for (int i = 0; i < 1000; i++) {
+            counts[config.wrap((index) -> simpleSuccess(index)).get()]++;
+        }
+        Assert.assertEquals(0, counts[failed.get()]);
+        Assert.assertTrue("Local calls " + counts[local], counts[local] > 620 && counts[local] < 800);
+        Assert.assertEquals(1000, counts[local] + counts[2] + counts[3]);
+
+        // Moving an endpoint into the local tier brings it back to full strength
+        config.setPriority(2, 0);
+        Assert.assertEquals(0, config.getPriority(2));
+        counts = new int[4];
+        for (int i = 0; i < 1000; i++) {
+            counts[config.wrap((index) -> simpleSuccess(index)).get()]++;
+        }
+        // Two out of three available is just below the threshold, so a few percent still spill over
+        Assert.assertTrue("Remote calls " + counts[3], counts[3] < 150);
+    }
+
+    @Test
+    public void testLoadBalancerSubset() throws Exception {
+        // Every endpoint is in the subset of exactly one client per round of 10 clients
+        int[] clients = new int[100];
+        List<LoadBalancer> loadBalancers = new ArrayList<>();
+        for (int clientId = 0; clientId < 20; clientId++) {
+            LoadBalancer config = LoadBalancer.builder()
+                    .setEndpointCount(100)
+                    .setSubset(clientId, 10)
+                    .build();
+            Set<Integer> subset = getRoutedIndexes(config, 10);
+            Assert.assertEquals(10, subset.size());
+            for (int index : subset) {
+                clients[index]++;
+            }
+            loadBalancers.add(config);
+        }
+        for (int count : clients) {
+            Assert.assertEquals(2, count);
+        }
+
+        // Adding an endpoint changes at most one endpoint of each subset
+        for (LoadBalancer config : loadBalancers) {
+            Set<Integer> before = getRoutedIndexes(config, 10);
+            config.addEndpoint();
+            Set<Integer> after = getRoutedIndexes(config, 10);
+            after.removeAll(before);
+            Assert.assertTrue(after.size() <= 1);
+        }
+        Assert.assertEquals(101, loadBalancers.get(0).snapshot().size());
+    }
+
+    @Test
+    public void testLoadBalancerSubsetMonitor() throws Exception {
+        // Only the endpoints in the subset are checked
+        Set<Integer> checked = Collections.synchronizedSet(new HashSet<>());
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(100)
+                .setSubset(3, 10)
+                .setMonitor(10, TimeUnit.MILLISECONDS, 1, 1, (index) -> {
+                    checked.add(index);
+                    return CompletableFuture.completedFuture(true);
+                })
+                .build();
+
+        Thread.sleep(100);
+        Set<Integer> routed = getRoutedIndexes(config, 10);
+        Assert.assertEquals(routed, new HashSet<>(checked));
+
+        // An endpoint that joins the subset is checked from then on
+        while (routed.containsAll(getRoutedIndexes(config, 10))) {
+            config.addEndpoint();
+        }
+        routed = getRoutedIndexes(config, 10);
+        Thread.sleep(100);
+        Assert.assertTrue(checked.containsAll(routed));
+        config.close();
+    }
+
+    private Set<Integer> getRoutedIndexes(LoadBalancer config, int calls) throws Exception {
+        Set<Integer> indexes = new HashSet<>();
+        for (int i = 0; i < calls; i++) {
+            indexes.add(config.wrap((index) -> simpleSuccess(index)).get());
+        }
+        return indexes;
+    }
+
+    @Test
+    public void testLoadBalancerConsistentHash() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setMaxFailureRate(1, 30, TimeUnit.SECONDS, 1000, TimeUnit.SECONDS)
+                .setEndpointCount(5)
+                .setPolicy(LoadBalancerPolicy.CONSISTENT_HASH)
+                .build();
+
+        Map<String, Integer> before = new HashMap<>();
+        for(int i = 0; i < 100; i++) {
+            String key = "key" + i;
+            before.put(key, config.wrap(key, (index) -> simpleSuccess(index)).get());
+            Assert.assertEquals(before.get(key), config.wrap(key, (index) -> simpleSuccess(index)).get());
+        }
+        Assert.assertEquals(5, new HashSet<>(before.values()).size());
+
+        // Suspend the endpoint of key0, only keys from that endpoint should move
+        int suspended = before.get("key0");
+        try {
+            config.wrap("key0", (index) -> {
+                CompletableFuture<Integer> completableFuture = new CompletableFuture<>();
+                completableFuture.completeExceptionally(new Exception("Stuff"));
+                return completableFuture;
+            }).get();
+
+        } catch (ExecutionException ex) {
+            Assert.assertEquals("java.lang.Exception: Stuff", ex.getMessage());
+        }
+        for(int i = 0; i < 100; i++) {
+            String key = "key" + i;
+            int index = config.wrap(key, (index2) -> simpleSuccess(index2)).get();
+            if(before.get(key) == suspended) {
+                Assert.assertNotEquals(suspended, index);
+
+            } else {
+                Assert.assertEquals(before.get(key).intValue(), index);
+            }
+        }
+    }
+
+    @Test
+    public void testLoadBalancerConsistentHashMostlySuspended() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setMaxFailureRate(1, 30, TimeUnit.SECONDS, 1000, TimeUnit.SECONDS)
+                .setEndpointCount(50)
+                .setPolicy(LoadBalancerPolicy.CONSISTENT_HASH)
+                .build();
+
+        // Suspend every endpoint but one
+        CompletableFuture<Integer> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new Exception("Stuff"));
+        for(int i = 0; i < 10000 && config.snapshot().stream().filter(s -> s.getCircuitBreakerState() == CircuitBreakerState.OPEN).count() < 49; i++) {
+            config.wrap("key" + i, (index) -> index == 7 ? simpleSuccess(index) : failure);
+        }
+
+        // Keys whose slots all belong to suspended endpoints still find the last one
+        for(int i = 0; i < 100; i++) {
+            Assert.assertEquals(7, config.wrap("key" + i, (index) -> simpleSuccess(index)).get().intValue());
+        }
+    }
+
+    @Test
+    public void testLoadBalancerConsistentHashRetry() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setRetryCount(1)
+                .setEndpointCount(5)
+                .setPolicy(LoadBalancerPolicy.CONSISTENT_HASH)
+                .build();
+
+        // The retry should go to another endpoint
+        List<Integer> indexes = new ArrayList<>();
+        config.wrap("key", (index, retryCount) -> {
+            indexes.add(index);
+            CompletableFuture<Integer> completableFuture = new CompletableFuture<>();
+            if (retryCount > 0) {
+                completableFuture.completeExceptionally(new Exception("Stuff"));
+
+            } else {
+                completableFuture.complete(index);
+            }
+            return completableFuture;
+        }).get();
+        Assert.assertEquals(2, indexes.size());
+        Assert.assertNotEquals(indexes.get(0), indexes.get(1));
+    }
+
+    @Test
+    public void testLoadBalancerAddRemoveEndpoint() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(2)
+                .build();
+
+        config.wrap((index) -> simpleSuccess(index)).get();
+        config.wrap((index) -> simpleSuccess(index)).get();
+        Assert.assertEquals(2, config.addEndpoint());
+        Assert.assertTrue(config.removeEndpoint(0));
+        Assert.assertFalse(config.removeEndpoint(0));
+
+        // Removed indexes are not reused and surviving endpoints keep their statistics
+        Assert.assertEquals(3, config.addEndpoint());
+        Set<Integer> indexes = new HashSet<>();
+        for (int i = 0; i < 6; i++) {
+            indexes.add(config.wrap((index) -> simpleSuccess(index)).get());
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), indexes);
+        List<EndpointSnapshot> snapshots = config.snapshot();
+        Assert.assertEquals(Arrays.asList(1, 2, 3), snapshots.stream().map(EndpointSnapshot::getIndex).collect(Collectors.toList()));
+        Assert.assertEquals(3, snapshots.get(0).getSuccessCount());
+
+        // No endpoints left
+        config.removeEndpoint(1);
+        config.removeEndpoint(2);
+        config.removeEndpoint(3);
+        try {
+            config.wrap((index) -> simpleSuccess(index)).get();
+            Assert.fail("Expected the call to fail");
+
+        } catch (ExecutionException ex) {
+            Assert.assertEquals("dk.nversion.LoadBalancerException: All backends suspended", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testLoadBalancerDrainEndpoint() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(2)
+                .setPolicy(LoadBalancerPolicy.LEAST_OUTSTANDING)
+                .build();
+
+        List<Integer> indexes = new ArrayList<>();
+        CompletableFuture<Integer> hanging = new CompletableFuture<>();
+        CompletableFuture<Integer> future = config.wrap((index) -> {
+            indexes.add(index);
+            return hanging;
+        });
+        int draining = indexes.get(0);
+
+        // The draining endpoint finishes its call but gets no new ones
+        CompletableFuture<Void> drained = config.drainEndpoint(draining);
+        Assert.assertFalse(drained.isDone());
+        Assert.assertTrue(config.snapshot().get(draining).isDraining());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(1 - draining, config.wrap((index) -> simpleSuccess(index)).get().intValue());
+        }
+
+        hanging.complete(draining);
+        Assert.assertEquals(draining, future.get().intValue());
+        drained.get(1000, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(1, config.snapshot().size());
+        Assert.assertEquals(1 - draining, config.snapshot().get(0).getIndex());
+    }
+
+    @Test
+    public void testLoadBalancerConsistentHashAddEndpoint() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(4)
+                .setPolicy(LoadBalancerPolicy.CONSISTENT_HASH)
+                .build();
+
+        Map<String, Integer> before = new HashMap<>();
+        for(int i = 0; i < 100; i++) {
+            before.put("key" + i, config.wrap("key" + i, (index) -> simpleSuccess(index)).get());
+        }
+
+        // Keys only move to the new endpoint, and back again when it is removed
+        int added = config.addEndpoint();
+        int moved = 0;
+        for(int i = 0; i < 100; i++) {
+            int index = config.wrap("key" + i, (index2) -> simpleSuccess(index2)).get();
+            if(index != before.get("key" + i)) {
+                Assert.assertEquals(added, index);
+                moved++;
+            }
+        }
+        Assert.assertTrue(moved > 0 && moved < 50);
+
+        config.removeEndpoint(added);
+        for(int i = 0; i < 100; i++) {
+            Assert.assertEquals(before.get("key" + i), config.wrap("key" + i, (index) -> simpleSuccess(index)).get());
+        }
+    }
+
+    @Test
+    public void testLoadBalancerCoalescing() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setCoalescing(true)
+                .build();
+
+        List<CompletableFuture<String>> calls = new ArrayList<>();
+        Supplier<CompletableFuture<String>> backend = () -> {
+            CompletableFuture<String> completableFuture = new CompletableFuture<>();
+            calls.add(completableFuture);
+            return completableFuture;
+        };
+
+        // Concurrent calls for the same key share the backend call, other keys get their own
+        CompletableFuture<String> first = config.wrap("key", backend);
+        CompletableFuture<String> second = config.wrap("key", backend);
+        CompletableFuture<String> third = config.wrap("key", backend);
+        CompletableFuture<String> other = config.wrap("other", backend);
+        Assert.assertEquals(2, calls.size());
+
+        // Cancelling a waiter leaves the shared call alone
+        third.cancel(true);
+        calls.get(0).complete("value");
+        Assert.assertEquals("value", first.get());
+        Assert.assertEquals("value", second.get());
+        Assert.assertFalse(other.isDone());
+
+        // Once completed the next call goes to the backend again
+        config.wrap("key", backend);
+        Assert.assertEquals(3, calls.size());
+    }
+
+    @Test
+    public void testLoadBalancerCoalescingCancelFirst() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setCoalescing(true)
+                .build();
+
+        List<CompletableFuture<String>> calls = new ArrayList<>();
+        Supplier<CompletableFuture<String>> backend = () -> {
+            CompletableFuture<String> completableFuture = new CompletableFuture<>();
+            calls.add(completableFuture);
+            return completableFuture;
+        };
+
+        // The caller that started the shared call can cancel without taking it from the others
+        CompletableFuture<String> first = config.wrap("key", backend);
+        CompletableFuture<String> second = config.wrap("key", backend);
+        first.cancel(true);
+        Assert.assertFalse(calls.get(0).isDone());
+        calls.get(0).complete("value");
+        Assert.assertTrue(first.isCancelled());
+        Assert.assertEquals("value", second.get());
+    }
+
+    @Test
+    public void testLoadBalancerHedging() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(2)
+                .setHedging(50, 100)
+                .build();
+
+        // Build up latency samples on both endpoints
+        for(int i = 0; i < 200; i++) {
+            config.wrap((index) -> simpleSuccess("url" + index)).get();
+        }
+
+        // First endpoint hangs, so the hedge to the second endpoint should win and cancel it
+        CompletableFuture<String> hanging = new CompletableFuture<>();
+        CompletableFuture<String> hedged = config.wrap((index) -> index == 0 ? hanging : simpleSuccess("url" + index));
+        Assert.assertEquals("url1", hedged.get(1000, TimeUnit.MILLISECONDS));
+        try {
+            hanging.get(1000, TimeUnit.MILLISECONDS);
+            Assert.fail("Expected the first attempt to be cancelled");
+
+        } catch (CancellationException ex) {
+            Assert.assertTrue(hanging.isCancelled());
+        }
+
+        // The cancelled attempt is released without counting as a failure
+        Thread.sleep(50);
+        Assert.assertEquals(0, config.snapshot().get(0).getInFlight());
+        Assert.assertEquals(0, config.snapshot().get(0).getFailureCount());
+    }
+
+    @Test
+    public void testLoadBalancerHedgingCircuitBreaker() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(2)
+                .setHedging(50, 100)
+                .setMaxFailureRate(1, 30, TimeUnit.SECONDS, 50, TimeUnit.MILLISECONDS)
+                .build();
+
+        for(int i = 0; i < 200; i++) {
+            config.wrap((index) -> simpleSuccess("url" + index)).get();
+        }
+
+        // Suspend the first endpoint and wait for it to go half open
+        CompletableFuture<String> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new Exception("Normal exception"));
+        while (config.snapshot().get(0).getCircuitBreakerState() == CircuitBreakerState.CLOSED) {
+            config.wrap((index) -> index == 0 ? failure : simpleSuccess("url" + index));
+        }
+        Thread.sleep(60);
+
+        // Probes to the first endpoint hang and lose to the hedge, the probes should be given back each time
+        AtomicInteger probes = new AtomicInteger();
+        for(int i = 0; i < CircuitBreaker.HALF_OPEN_PROBES * 4; i++) {
+            Assert.assertEquals("url1", config.wrap((index) -> {
+                if (index == 0) {
+                    probes.incrementAndGet();
+                    return new CompletableFuture<>();
+                }
+                return simpleSuccess("url" + index);
+            }).get(1000, TimeUnit.MILLISECONDS));
+        }
+        Thread.sleep(50);
+        Assert.assertTrue(probes.get() > CircuitBreaker.HALF_OPEN_PROBES);
+        Assert.assertEquals(CircuitBreakerState.HALF_OPEN, config.snapshot().get(0).getCircuitBreakerState());
+        Assert.assertEquals(0, config.snapshot().get(0).getInFlight());
+    }
+
+    @Test
+    public void testLoadBalancerTimeout() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setRetryCount(1)
+                .setEndpointCount(2)
+                .setTimeout(20, TimeUnit.MILLISECONDS)
+                .build();
+
+        // First attempt hangs and times out, the retry succeeds
+        List<CompletableFuture<String>> attempts = new ArrayList<>();
+        CompletableFuture<String> future = config.wrap((index, retryCount) -> {
+            CompletableFuture<String> completableFuture = retryCount > 0 ? new CompletableFuture<>() : simpleSuccess("url" + index);
+            attempts.add(completableFuture);
+            return completableFuture;
+        });
+
+        Assert.assertEquals("url1", future.get(1000, TimeUnit.MILLISECONDS));
+        // The future the function returned might be shared, so the timeout leaves it alone
+        Assert.assertFalse(attempts.get(0).isDone());
+        Assert.assertEquals(1, config.snapshot().get(0).getFailureCount());
+        Assert.assertEquals(0, config.snapshot().get(0).getInFlight());
+    }
+
+    @Test
+    public void testLoadBalancerTimeoutSharedFuture() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setTimeout(10, TimeUnit.MILLISECONDS)
+                .build();
+
+        // A future shared by every call times out each of them without being failed for its other users
+        CompletableFuture<String> shared = new CompletableFuture<>();
+        for (int i = 0; i < 2; i++) {
+            try {
+                config.wrap(() -> shared).get(1000, TimeUnit.MILLISECONDS);
+                Assert.fail("Expected the attempt to time out");
+
+            } catch (ExecutionException ex) {
+                Assert.assertEquals("java.util.concurrent.TimeoutException: Attempt timed out", ex.getMessage());
+            }
+        }
+        Assert.assertFalse(shared.isDone());
+        shared.complete("url0");
+        Assert.assertEquals("url0", config.wrap(() -> shared).get(1000, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testLoadBalancerDeadline() throws Exception {
+        // Runs on a simulated clock so a slow scheduler can not push attempts out
+        LoadBalancerSimulator.SimulatedTime time = new LoadBalancerSimulator.SimulatedTime();
+        HashedWheelTimer timer = time.newTimer();
+        LoadBalancer config = LoadBalancer.builder()
+                .setRetryCount(10)
+                .setTimeout(20, TimeUnit.MILLISECONDS)
+                .setDeadline(50, TimeUnit.MILLISECONDS)
+                .setTimer(timer)
+                .setExecutor(Runnable::run)
+                .build();
+
+        // Every attempt hangs, the deadline stops the retries and is handed to the function
+        List<Long> deadlines = new ArrayList<>();
+        long start = time.nanoTime();
+        CompletableFuture<String> future = config.wrap((index, retryCount, deadline) -> {
+            deadlines.add(deadline);
+            return new CompletableFuture<>();
+        });
+        time.advance(timer, 100, TimeUnit.MILLISECONDS);
+
+        try {
+            future.getNow(null);
+            Assert.fail("Expected the call to time out");
+
+        } catch (CompletionException ex) {
+            Assert.assertEquals("java.util.concurrent.TimeoutException: Deadline exceeded", ex.getMessage());
+        }
+        // Three attempts fit in the deadline, the last one only gets what is left of it
+        Assert.assertEquals(3, deadlines.size());
+        Assert.assertEquals(start + TimeUnit.MILLISECONDS.toNanos(20), (long) deadlines.get(0));
+        Assert.assertTrue(deadlines.get(1) - deadlines.get(0) >= TimeUnit.MILLISECONDS.toNanos(20));
+        Assert.assertEquals(start + TimeUnit.MILLISECONDS.toNanos(50), (long) deadlines.get(2));
+        timer.stop();
+    }
+
+    @Test
+    public void testLoadBalancerConcurrencyLimit() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setConcurrencyLimit(2, 1, 10)
+                .build();
+
+        // Calls above the limit fail straight away when there is no queue
+        List<CompletableFuture<String>> hanging = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            hanging.add(config.wrap(() -> new CompletableFuture<>()));
+        }
+        Assert.assertFalse(hanging.get(0).isDone());
+        Assert.assertFalse(hanging.get(1).isDone());
+        try {
+            hanging.get(2).get(1000, TimeUnit.MILLISECONDS);
+            Assert.fail("Expected the call to be rejected");
+
+        } catch (ExecutionException ex) {
+            Assert.assertEquals("dk.nversion.LoadBalancerException: Concurrency limit reached", ex.getMessage());
+        }
+
+        // Cancelling a call frees its slot
+        hanging.get(0).cancel(true);
+        Assert.assertEquals("url0", config.wrap(() -> simpleSuccess("url0")).get(1000, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testLoadBalancerQueue() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(2)
+                .setEndpointConcurrencyLimit(1, 1, 1)
+                .setQueue(1, 1, TimeUnit.SECONDS)
+                .build();
+
+        // Both endpoints are busy so the third call waits in the queue and the fourth is rejected
+        List<CompletableFuture<String>> attempts = new ArrayList<>();
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(config.wrap((index) -> {
+                CompletableFuture<String> completableFuture = new CompletableFuture<>();
+                attempts.add(completableFuture);
+                return completableFuture;
+            }));
+        }
+        Assert.assertEquals(2, attempts.size());
+        Assert.assertFalse(futures.get(2).isDone());
+        try {
+            futures.get(3).get(1000, TimeUnit.MILLISECONDS);
+            Assert.fail("Expected the call to be rejected");
+
+        } catch (ExecutionException ex) {
+            Assert.assertEquals("dk.nversion.LoadBalancerException: Queue full", ex.getMessage());
+        }
+
+        // Completing a call dispatches the queued one
+        attempts.get(0).complete("done");
+        Assert.assertEquals("done", futures.get(0).get(1000, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(3, attempts.size());
+        attempts.get(2).complete("queued");
+        Assert.assertEquals("queued", futures.get(2).get(1000, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testLoadBalancerQueueTimeout() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setConcurrencyLimit(1, 1, 1)
+                .setQueue(10, 20, TimeUnit.MILLISECONDS)
+                .build();
+
+        CompletableFuture<String> hanging = new CompletableFuture<>();
+        config.wrap(() -> hanging);
+        CompletableFuture<String> future = config.wrap(() -> simpleSuccess("url0"));
+        try {
+            future.get(1000, TimeUnit.MILLISECONDS);
+            Assert.fail("Expected the call to time out in the queue");
+
+        } catch (ExecutionException ex) {
+            Assert.assertEquals("dk.nversion.LoadBalancerException: Queue timeout", ex.getMessage());
+        }
+
+        // The timed out call does not hold on to a queue slot
+        hanging.complete("done");
+        Assert.assertEquals("url0", config.wrap(() -> simpleSuccess("url0")).get(1000, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testLoadBalancerQueueReleasesWaiters() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setConcurrencyLimit(1, 1, 1)
+                .setQueue(10, 1, TimeUnit.MILLISECONDS)
+                .build();
+
+        // While the only permit is held, queued calls that time out are not kept by the queue
+        CompletableFuture<String> hanging = new CompletableFuture<>();
+        config.wrap(() -> hanging);
+        for (int i = 0; i < 100; i++) {
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int j = 0; j < 20; j++) {
+                futures.add(config.wrap(() -> simpleSuccess("url0")));
+            }
+            for (CompletableFuture<String> future : futures) {
+                future.exceptionally(ex -> null).get(1000, TimeUnit.MILLISECONDS);
+            }
+            Assert.assertEquals(0, config.getQueueLength());
+        }
+
+        // Neither are cancelled ones
+        LoadBalancer cancelling = LoadBalancer.builder()
+                .setConcurrencyLimit(1, 1, 1)
+                .setQueue(10, 0, TimeUnit.MILLISECONDS)
+                .build();
+        cancelling.wrap(() -> hanging);
+        for (int i = 0; i < 100; i++) {
+            cancelling.wrap(() -> simpleSuccess("url0")).cancel(false);
+        }
+        Assert.assertEquals(0, cancelling.getQueueLength());
+        CompletableFuture<String> queued = cancelling.wrap(() -> simpleSuccess("url0"));
+        hanging.complete("done");
+        Assert.assertEquals("url0", queued.get(1000, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testLoadBalancerBlockingQueue() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setConcurrencyLimit(1, 1, 1)
+                .setQueue(1, 100, TimeUnit.MILLISECONDS)
+                .build();
+
+        // A blocking call waits in the queue for the wrapped call holding the only permit
+        CompletableFuture<String> hanging = new CompletableFuture<>();
+        config.wrap(() -> hanging);
+        CompletableFuture<String> blocking = CompletableFuture.supplyAsync(() -> {
+            try {
+                return config.call(() -> "url0");
+
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        Thread.sleep(20);
+        Assert.assertFalse(blocking.isDone());
+        hanging.complete("done");
+        Assert.assertEquals("url0", blocking.get(1000, TimeUnit.MILLISECONDS));
+
+        // And gives up when the queue times out
+        CompletableFuture<String> stuck = new CompletableFuture<>();
+        config.wrap(() -> stuck);
+        try {
+            config.call(() -> "url0");
+            Assert.fail("Expected the call to time out in the queue");
+
+        } catch (LoadBalancerException ex) {
+            Assert.assertEquals("Queue timeout", ex.getMessage());
+        }
+        stuck.complete("done");
+        Assert.assertEquals("url0", config.call(() -> "url0"));
+    }
+
+    @Test
+    public void testLoadBalancerCriticalityShedding() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(4)
+                .setMaxFailureRate(1, 30, TimeUnit.SECONDS, 60, TimeUnit.SECONDS)
+                .build();
+        config.wrap(Criticality.SHEDDABLE, (index) -> simpleSuccess(index)).get();
+
+        // Suspend three of the four endpoints
+        Set<Integer> failed = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            config.wrap((index) -> {
+                failed.add(index);
+                CompletableFuture<Integer> completableFuture = new CompletableFuture<>();
+                completableFuture.completeExceptionally(new Exception("Stuff"));
+                return completableFuture;
+            }).exceptionally(ex -> null).get();
+        }
+        Thread.sleep(20);
+
+        // Sheddable calls are rejected while the other calls still go to the last endpoint
+        try {
+            config.wrap(Criticality.SHEDDABLE, (index) -> simpleSuccess(index)).get(1000, TimeUnit.MILLISECONDS);
+            Assert.fail("Expected the call to be shed");
+
+        } catch (ExecutionException ex) {
+            Assert.assertEquals("dk.nversion.LoadBalancerException: Load shed", ex.getMessage());
+        }
+        try {
+            config.call(Criticality.SHEDDABLE, (index, retryCount, deadline) -> index);
+            Assert.fail("Expected the call to be shed");
+
+        } catch (LoadBalancerException ex) {
+            Assert.assertEquals("Load shed", ex.getMessage());
+        }
+        Assert.assertEquals(3, failed.size());
+        Assert.assertFalse(failed.contains(config.wrap(Criticality.CRITICAL, (index) -> simpleSuccess(index)).get()));
+        Assert.assertFalse(failed.contains(config.wrap((index) -> simpleSuccess(index)).get()));
+    }
+
+    @Test
+    public void testLoadBalancerCriticalityQueue() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setConcurrencyLimit(2, 2, 2)
+                .setQueue(4, 1, TimeUnit.SECONDS)
+                .build();
+
+        Map<String, CompletableFuture<String>> attempts = new HashMap<>();
+        config.wrap(() -> hold(attempts, "first"));
+        config.wrap(() -> hold(attempts, "second"));
+
+        // The default calls have used up the limit, the critical call still gets in while the others queue
+        CompletableFuture<String> defaultFuture = config.wrap(() -> hold(attempts, "default"));
+        CompletableFuture<String> sheddableFuture = config.wrap(Criticality.SHEDDABLE, () -> hold(attempts, "sheddable"));
+        config.wrap(Criticality.CRITICAL, () -> hold(attempts, "critical"));
+        CompletableFuture<String> queuedFuture = config.wrap(Criticality.CRITICAL, () -> hold(attempts, "queued"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("first", "second", "critical")), attempts.keySet());
+
+        // The critical call queued last is resumed first, sheddable calls only get half of the limit
+        attempts.get("first").complete("done");
+        Assert.assertTrue(attempts.containsKey("queued"));
+        attempts.get("second").complete("done");
+        Assert.assertFalse(attempts.containsKey("default"));
+        attempts.get("critical").complete("done");
+        Assert.assertTrue(attempts.containsKey("default"));
+        attempts.get("queued").complete("done");
+        Assert.assertFalse(attempts.containsKey("sheddable"));
+        attempts.get("default").complete("done");
+        Assert.assertTrue(attempts.containsKey("sheddable"));
+        attempts.get("sheddable").complete("done");
+        for (CompletableFuture<String> future : Arrays.asList(defaultFuture, sheddableFuture, queuedFuture)) {
+            Assert.assertEquals("done", future.get(1000, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void testLoadBalancerCriticalityRetryBudget() throws Exception {
+        LoadBalancer config = LoadBalancer.builder()
+                .setRetryCount(1)
+                .setRetryBudget(10, 1)
+                .build();
+
+        AtomicInteger attempts = new AtomicInteger();
+        BiFunction<Integer, Integer, CompletableFuture<String>> failing = (index, retryCount) -> {
+            attempts.incrementAndGet();
+            CompletableFuture<String> completableFuture = new CompletableFuture<>();
+            completableFuture.completeExceptionally(new Exception("Stuff"));
+            return completableFuture;
+        };
+
+        // The default call spends the budget, a critical call can still retry on top of it
+        config.wrap(failing).exceptionally(ex -> null).get();
+        Assert.assertEquals(2, attempts.getAndSet(0));
+        config.wrap(failing).exceptionally(ex -> null).get();
+        Assert.assertEquals(1, attempts.getAndSet(0));
+        config.wrap(Criticality.CRITICAL, failing).exceptionally(ex -> null).get();
+        Assert.assertEquals(2, attempts.getAndSet(0));
+        config.wrap(Criticality.CRITICAL, failing).exceptionally(ex -> null).get();
+        Assert.assertEquals(1, attempts.getAndSet(0));
+    }
+
+    private CompletableFuture<String> hold(Map<String, CompletableFuture<String>> attempts, String name) {
+        CompletableFuture<String> completableFuture = new CompletableFuture<>();
+        attempts.put(name, completableFuture);
+        return completableFuture;
+    }
+
+    /* @Test // TODO: Implement test for latency based load balancing
+    public void testLoadBalancerLatency() throws Exception {
+        String[] urls = new String[] { "url1" };
+
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(urls.length)
+                .setPolicy(LoadBalancerPolicy.LATENCY_LAST)
+                .build();
+
+        Thread.sleep(500);
+        List<CompletableFuture<String>> futureResults = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            CompletableFuture<String> roundRobinFuture = config.wrap(() -> {
+                CompletableFuture<String> completableFuture = new CompletableFuture<>();
+                completableFuture.completeExceptionally(new Exception("Normal exception"));
+                return completableFuture;
+            });
+            futureResults.add(roundRobinFuture);
+        }
+
+        List<Exception> results = new ArrayList<>();
+        for(CompletableFuture<String> future : futureResults) {
+            try {
+                future.get();
+
+            } catch (Exception ex){
+                results.add(ex);
+            }
+        }
+
+        Assert.assertEquals("dk.nversion.LoadBalancerException: All backends suspended", results.get(0).getMessage());
+        Assert.assertEquals("dk.nversion.LoadBalancerException: All backends suspended", results.get(1).getMessage());
+        Assert.assertEquals("dk.nversion.LoadBalancerException: All backends suspended", results.get(2).getMessage());
+    } */
+
+    // TODO: Implement support for setting a master for retry, fx. in cases where we have a master and several slaves with deplyed replication.
+
+    @Test
+    public void testLoadBalancerSelfRefreshingCaching() throws Exception {
+        String[] urls = new String[] { "url1" };
+
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(urls.length)
+                .setCache(100, TimeUnit.MILLISECONDS, String.class, (index, cache) -> {
+                    CompletableFuture<String> valueFuture = new CompletableFuture<String>();
+                    valueFuture.complete("ValueToBeCached");
+                    return valueFuture;
+                })
+                .build();
+    }
+
+    @Test
+    public void testLoadBalancerCaching() throws Exception {
+        String[] urls = new String[] { "url1" };
+
+        CompletableFutureCache<String,String> cache = new CompletableFutureCache<>((key, value, store) -> {
+            store.put(key, value, 100, TimeUnit.MILLISECONDS);
+        });
+
+        LoadBalancer config = LoadBalancer.builder()
+                .setEndpointCount(urls.length)
+                .build();
+
+            CompletableFuture<String> cachedFuture = config.wrap((index) -> {
+                CompletableFuture<String> result = cache.wrap(urls[index], simpleSuccess(urls[index]));
+                return result;
+        });
+
+        Assert.assertEquals("url1", cachedFuture.get());
+        Assert.assertEquals("url1", cache.get("url1", null));
+    }
+
+    @Test
+    public void testLoadBalancerWrapCached() throws Exception {
+        CompletableFutureCache<String,String> cache = new CompletableFutureCache<>((key, value, store) -> {
+            store.put(key, value, 30, TimeUnit.SECONDS);
+        });
+
+        LoadBalancer config = LoadBalancer.builder()
+                .setCache(cache)
+                .build();
+
+        // Second call for the same key is served from the cache without calling the backend
+        List<String> calls = new ArrayList<>();
+        for(int i = 0; i < 2; i++) {
+            String value = config.wrap("key", () -> {
+                calls.add("key");
+                return simpleSuccess("value");
+            }).get();
+            Assert.assertEquals("value", value);
+        }
+        Assert.assertEquals(1, calls.size());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, config.snapshot().get(0).getSuccessCount());
     }
 
 }
\ No newline at end of file